@@ -0,0 +1,151 @@
+package com.mirea;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Сравнение результатов JMH ({@code -rf json}) с сохраненным базовым файлом.
+ * </p> Замеры сопоставляются по имени бенчмарка, режиму и параметрам. Регрессия - ухудшение основной
+ * метрики больше порога в процентах (для {@code thrpt} хуже - меньше, для остальных режимов - больше),
+ * а также рост {@code gc.alloc.rate.norm} (байт на операцию) больше порога и больше {@link #ALLOCATION_NOISE} байт.
+ */
+final class BaselineComparison {
+
+    private static final double ALLOCATION_NOISE = 64;                      // Байт на операцию, ниже - шум
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+    /**
+     * Один замер
+     */
+    private static final class Score {
+        final String mode;
+        final double score;
+        final String unit;
+        final double allocation;            // Байт на операцию или NaN, если GC-профайлер не включался
+
+        Score(String mode, double score, String unit, double allocation) {
+            this.mode = mode;
+            this.score = score;
+            this.unit = unit;
+            this.allocation = allocation;
+        }
+    }
+
+    private final double threshold;
+    private final List<String> lines = new ArrayList<>();
+    private int compared;
+    private int regressions;
+
+    /**
+     * @param threshold - порог регрессии в процентах
+     */
+    BaselineComparison(double threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Threshold should not be negative");
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * Сравнивает два файла результатов
+     * @param baseline - базовый файл
+     * @param current - новый файл
+     * @return {@code true}, если регрессий нет
+     * @throws IOException
+     */
+    boolean compare(Path baseline, Path current) throws IOException {
+        Map<String, Score> before = load(baseline);
+        Map<String, Score> after = load(current);
+        for(Map.Entry<String, Score> now : after.entrySet()) {
+            Score old = before.get(now.getKey());
+            if (old == null) {
+                lines.add(String.format(Locale.ROOT, "NEW         %s: %.3f %s", now.getKey(), now.getValue().score, now.getValue().unit));
+                continue;
+            }
+            compare(now.getKey(), old, now.getValue());
+        }
+        return regressions == 0;
+    }
+
+    private void compare(String name, Score old, Score now) {
+        compared++;
+        if (!old.unit.equals(now.unit)) {
+            lines.add(String.format(Locale.ROOT, "SKIPPED     %s: unit %s -> %s", name, old.unit, now.unit));
+            return;
+        }
+        double change = (now.score - old.score) / old.score * 100;
+        double worse = old.mode.equals("thrpt") ? -change : change;       // Положительное - хуже
+        boolean regression = worse > threshold;
+        lines.add(String.format(Locale.ROOT, "%-11s %s: %.3f -> %.3f %s (%+.1f%%)",
+                regression ? "REGRESSION" : "ok", name, old.score, now.score, now.unit, change));
+
+        boolean allocation = false;
+        if (!Double.isNaN(old.allocation) && !Double.isNaN(now.allocation)) {
+            double grown = now.allocation - old.allocation;
+            allocation = grown > ALLOCATION_NOISE && grown > old.allocation * threshold / 100;
+            if (allocation) {
+                lines.add(String.format(Locale.ROOT, "REGRESSION  %s: allocation %.0f -> %.0f B/op", name, old.allocation, now.allocation));
+            }
+        }
+        if (regression || allocation) {
+            regressions++;
+        }
+    }
+
+    /**
+     * Читает файл результатов JMH: ключ - имя бенчмарка, режим и параметры
+     */
+    private static Map<String, Score> load(Path file) throws IOException {
+        Map<String, Score> result = new LinkedHashMap<>();
+        try (Reader in = Files.newBufferedReader(file)) {
+            JsonArray runs = JsonParser.parseReader(in).getAsJsonArray();
+            for(JsonElement element : runs) {
+                JsonObject run = element.getAsJsonObject();
+                String mode = run.get("mode").getAsString();
+                Map<String, String> params = new TreeMap<>();
+                if (run.has("params")) {
+                    for(Map.Entry<String, JsonElement> now : run.getAsJsonObject("params").entrySet()) {
+                        params.put(now.getKey(), now.getValue().getAsString());
+                    }
+                }
+                JsonObject primary = run.getAsJsonObject("primaryMetric");
+                double allocation = Double.NaN;
+                JsonObject secondary = run.getAsJsonObject("secondaryMetrics");
+                if (secondary != null && secondary.has(ALLOCATION)) {
+                    allocation = secondary.getAsJsonObject(ALLOCATION).get("score").getAsDouble();
+                }
+                String key = run.get("benchmark").getAsString() + " " + params + " " + mode;
+                result.put(key, new Score(mode, primary.get("score").getAsDouble(), primary.get("scoreUnit").getAsString(), allocation));
+            }
+        }
+        catch (RuntimeException e) {
+            throw new IOException("Incorrect JMH result file " + file + ": " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    /**
+     * Отчет: строка на каждый замер и итог
+     */
+    String report() {
+        StringBuilder result = new StringBuilder();
+        for(String now : lines) {
+            result.append(now).append('\n');
+        }
+        result.append(String.format(Locale.ROOT, "%d compared, %d regressions (threshold %.1f%%)%n", compared, regressions, threshold));
+        return result.toString();
+    }
+}
@@ -0,0 +1,99 @@
+package com.mirea;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * Запуск бенчмарков: все аргументы, кроме перечисленных ниже, передаются JMH как есть.
+ * </p> Всегда включается GC-профайлер ({@code gc.alloc.rate.norm} - байт на операцию), результат пишется
+ * в JSON ({@code -rff}, по умолчанию {@code jmh-result.json}).
+ * <pre>
+ * --baseline &lt;file&gt;         после прогона сравнить результат с базовым файлом
+ * --threshold &lt;percent&gt;     порог регрессии (по умолчанию 10)
+ * --compare &lt;base&gt; &lt;new&gt;   только сравнить два файла, без прогона
+ * </pre>
+ * При регрессии процесс завершается с кодом 1.
+ */
+public final class BenchmarkMain {
+
+    private static final double DEFAULT_THRESHOLD = 10;
+    private static final String DEFAULT_RESULT = "jmh-result.json";
+
+    private BenchmarkMain() {}
+
+    public static void main(String[] argv) throws IOException, RunnerException {
+        List<String> args = new ArrayList<>(List.of(argv));
+        String baseline = Main.takeOption(args, "--baseline");
+        String threshold = Main.takeOption(args, "--threshold");
+        BaselineComparison comparison = new BaselineComparison(threshold != null ? Double.parseDouble(threshold) : DEFAULT_THRESHOLD);
+
+        int compare = args.indexOf("--compare");
+        if (compare >= 0) {
+            if (compare + 2 >= args.size()) {
+                System.err.println("Missing arguments. Expected --compare <baseline.json> <result.json>");
+                System.exit(2);
+            }
+            finish(comparison, Paths.get(args.get(compare + 1)), Paths.get(args.get(compare + 2)));
+            return;
+        }
+
+        CommandLineOptions options;
+        try {
+            options = new CommandLineOptions(args.toArray(new String[0]));
+        }
+        catch (CommandLineOptionException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+        if (options.shouldHelp() || options.shouldList() || options.shouldListWithParams()
+                || options.shouldListProfilers() || options.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args.toArray(new String[0]));     // Справка и списки - как у JMH
+            return;
+        }
+
+        String result = options.getResult().orElse(DEFAULT_RESULT);
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+                .parent(options)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result);
+        if (!hasGcProfiler(options)) {
+            builder.addProfiler(GCProfiler.class);
+        }
+        new Runner(builder.build()).run();
+
+        if (baseline != null) {
+            finish(comparison, Paths.get(baseline), Paths.get(result));
+        }
+    }
+
+    private static boolean hasGcProfiler(CommandLineOptions options) {
+        for(ProfilerConfig now : options.getProfilers()) {
+            if (now.getKlass().equals("gc") || now.getKlass().equals(GCProfiler.class.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void finish(BaselineComparison comparison, Path baseline, Path result) throws IOException {
+        boolean clean = comparison.compare(baseline, result);
+        System.out.print(comparison.report());
+        if (!clean) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.mirea;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Подпись и проверка файла целиком: чтение, хеширование и RSA.
+ * </p> {@link Signer#signFile} дописывает подпись и переименовывает файл, поэтому повторять его нельзя;
+ * здесь замеряется его основа {@link Signer#sign(FileChannel)} над неизменным файлом, а для проверки -
+ * основа {@link Verifier#verifyFile}, {@link Verifier#verify(FileChannel)}, над заранее подписанной копией.
+ * </p> Файлы лежат во временном каталоге ({@code -Djava.io.tmpdir}), при больших размерах замеряется
+ * скорее кэш страниц ОС, чем диск.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileBenchmark {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    @Param({ "64", "1048576", "67108864", "1073741824" })
+    public long size;
+
+    @Param({ "stream", "mmap", "pipeline" })
+    public String io;
+
+    private Path directory;
+    private Path content;
+    private Path signed;
+    private Signer signer;
+    private Verifier verifier;
+
+    @Setup
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        ReadMode.select(ReadMode.forName(io));
+        SignRSA.KeyPair keys = SignRSA.newKeyPair(true);
+        signer = new Signer(keys.PrivateK);
+        verifier = new Verifier(keys.PublicK);
+
+        directory = Files.createTempDirectory("sign-bench");
+        content = directory.resolve("content");
+        Random random = new Random(size);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (FileChannel out = FileChannel.open(content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for(long left = size; left > 0; left -= buffer.length) {
+                random.nextBytes(buffer);
+                ByteBuffer now = ByteBuffer.wrap(buffer, 0, (int)Math.min(buffer.length, left));
+                while (now.hasRemaining()) {
+                    out.write(now);
+                }
+            }
+        }
+        Path copy = Files.copy(content, directory.resolve("copy"));
+        signed = Signer.appendSign(copy, sign());                         // copy -> copy.sig
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(content);
+        Files.deleteIfExists(signed);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public byte[] sign() throws IOException, NoSuchAlgorithmException {
+        try (FileChannel channel = FileChannel.open(content, StandardOpenOption.READ)) {
+            return signer.sign(channel);
+        }
+    }
+
+    @Benchmark
+    public VerifyResult verify() throws IOException, NoSuchAlgorithmException {
+        try (FileChannel channel = FileChannel.open(signed, StandardOpenOption.READ)) {
+            VerifyResult result = verifier.verify(channel);
+            if (!result.isValid()) {
+                throw new IllegalStateException(result.getMessage());
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.mirea;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Хеширование сообщения в памяти: {@link SHA256#getHash} и хешер выбранной реализации {@link DigestProvider}.
+ * </p> Размер сообщения - от 64 байт до 1 ГиБ, для больших размеров нужна куча побольше (см. {@link Fork}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g", "--add-modules", "jdk.incubator.vector" })
+public class HashBenchmark {
+
+    @Param({ "64", "1024", "65536", "1048576", "67108864", "1073741824" })
+    public int size;
+
+    @Param({ "builtin", "jca" })
+    public String provider;
+
+    private byte[] content;
+    private DigestProvider digest;
+
+    @Setup
+    public void setup() {
+        content = new byte[size];
+        new Random(size).nextBytes(content);
+        digest = DigestProvider.forName(provider);
+    }
+
+    @Benchmark
+    public byte[] hasher() throws NoSuchAlgorithmException {
+        Hasher hasher = digest.newHasher();
+        hasher.update(content);
+        return hasher.digest();
+    }
+
+    /**
+     * Статический {@link SHA256#getHash}: всегда встроенная реализация, параметр {@code provider} не влияет
+     */
+    @Benchmark
+    public byte[] getHash() {
+        return SHA256.getHash(content);
+    }
+}
@@ -0,0 +1,35 @@
+package com.mirea;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Создание пары ключей {@link SignRSA#newKeyPair} - все, что делает {@link SignRSA#generateKeys}, кроме записи файлов.
+ * </p> Время поиска простых сильно разбросано, поэтому замеров много и каждый - один вызов.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 50)
+@Fork(1)
+public class KeyGenBenchmark {
+
+    @Param({ "true", "false" })
+    public boolean parallel;
+
+    @Benchmark
+    public SignRSA.KeyPair newKeyPair() {
+        return SignRSA.newKeyPair(parallel);
+    }
+}
@@ -0,0 +1,79 @@
+package com.mirea;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mirea.SignRSA.KeyPair.PrivateKey;
+import com.mirea.SignRSA.KeyPair.PublicKey;
+
+/**
+ * Операции RSA над хеш-суммой: {@link SignRSA#encrypt} с CRT и без, {@link SignRSA#decrypt}.
+ * </p> Ключ размером {@code keySize} бит создается в {@link #setup()} так же, как {@link SignRSA#newKeyPair},
+ * но с простыми половинного размера. Реализация возведения в степень выбирается при запуске:
+ * {@code -jvmArgsAppend -Dsign.modexp=montgomery} (см. {@link ModExpEngine}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RsaBenchmark {
+
+    @Param({ "1024", "2048", "4096" })
+    public int keySize;
+
+    private PrivateKey crt;
+    private PrivateKey plain;
+    private PublicKey open;
+    private byte[] digest;
+    private byte[] signature;
+
+    @Setup
+    public void setup() {
+        SecureRandom random = new SecureRandom();
+        BigInteger e = BigInteger.valueOf(65537);                        // Как у ключей SignRSA
+        BigInteger p = PrimeSearch.randomPrime(keySize / 2, e, random);
+        BigInteger q = PrimeSearch.randomPrime(keySize / 2, e, random);
+        while (q.equals(p)) {
+            q = PrimeSearch.randomPrime(keySize / 2, e, random);
+        }
+        BigInteger N = p.multiply(q);
+        BigInteger d = e.modInverse(p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE)));
+
+        crt = new PrivateKey(d, N, p, q);
+        plain = new PrivateKey(d, N);
+        open = new PublicKey(e, N);
+        digest = new byte[SHA256.DIGEST_SIZE];
+        random.nextBytes(digest);
+        signature = SignRSA.encrypt(crt, digest);
+    }
+
+    @Benchmark
+    public byte[] encryptCrt() {
+        return SignRSA.encrypt(crt, digest);
+    }
+
+    @Benchmark
+    public byte[] encryptPlain() {
+        return SignRSA.encrypt(plain, digest);
+    }
+
+    @Benchmark
+    public BigInteger decrypt() {
+        return SignRSA.decrypt(open, signature);
+    }
+}
@@ -0,0 +1,102 @@
+package com.mirea;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Масштабирование подписи и проверки сообщений в памяти по числу потоков: {@link #MESSAGES} сообщений
+ * делятся между {@code threads} потоками пула. Результат - сообщений в секунду.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThroughputBenchmark {
+
+    private static final int MESSAGES = 64;
+
+    @Param({ "1", "2", "4", "8" })
+    public int threads;
+
+    @Param({ "1024", "1048576" })
+    public int size;
+
+    private ExecutorService pool;
+    private Signer signer;
+    private Verifier verifier;
+    private byte[][] contents;
+    private byte[][] signed;
+
+    @Setup
+    public void setup() throws NoSuchAlgorithmException {
+        SignRSA.KeyPair keys = SignRSA.newKeyPair(true);
+        signer = new Signer(keys.PrivateK);
+        verifier = new Verifier(keys.PublicK);
+        pool = Executors.newFixedThreadPool(threads);
+
+        Random random = new Random(size);
+        contents = new byte[MESSAGES][size];
+        signed = new byte[MESSAGES][];
+        for(int i = 0; i < MESSAGES; i++) {
+            random.nextBytes(contents[i]);
+            byte[] sign = signer.sign(contents[i]);
+            signed[i] = new byte[size + sign.length];
+            System.arraycopy(contents[i], 0, signed[i], 0, size);
+            System.arraycopy(sign, 0, signed[i], size, sign.length);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void sign() throws InterruptedException, ExecutionException {
+        List<Future<byte[]>> pending = new ArrayList<>(MESSAGES);
+        for(byte[] now : contents) {
+            pending.add(pool.submit(() -> signer.sign(now)));
+        }
+        for(Future<byte[]> now : pending) {
+            now.get();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void verify() throws InterruptedException, ExecutionException {
+        List<Future<VerifyResult>> pending = new ArrayList<>(MESSAGES);
+        for(byte[] now : signed) {
+            pending.add(pool.submit(() -> verifier.verify(now)));
+        }
+        for(Future<VerifyResult> now : pending) {
+            if (!now.get().isValid()) {
+                throw new IllegalStateException("Benchmark sign is not valid");
+            }
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package com.mirea;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Пакетная подпись множества файлов одним ключом на пуле потоков.
+ * </p> Небольшие файлы (до {@link #SMALL_FILE} байт) читаются в память целиком и хешируются пачками
+ * через {@link DigestProvider#hashAll(byte[][])}, большие - по одному потоком через {@link Signer#signFile}.
+ * </p> Объем данных в работе ограничен: перед постановкой задачи забирается столько байт из общего лимита,
+ * сколько задача держит в памяти, поэтому память не растет с размером и числом файлов.
+ */
+public final class BatchSigner {
+
+    public static final long SMALL_FILE = 64 * 1024;                        // Файлы меньше - хешируются пачками в памяти
+    public static final long DEFAULT_MAX_IN_FLIGHT = 256L * 1024 * 1024;    // Лимит данных в работе по умолчанию
+    private static final int BATCH_FILES = 64;                              // Файлов в одной пачке
+    private static final long BATCH_BYTES = 1024 * 1024;                    // Байт в одной пачке
+    private static final long STREAM_BYTES = 64 * 1024;                     // Память задачи для большого файла без конвейера (буфер чтения)
+    private static final int UNIT = 1024;                                   // Лимит считается в КиБ
+
+    private final Signer signer;
+    private final int threads;
+    private final long maxInFlight;
+    private final boolean merkle;
+    private final long chunkSize;
+
+    /**
+     * @param signer - подписывающий объект
+     * @param threads - размер пула потоков
+     * @param maxInFlight - сколько байт одновременно может находиться в работе
+     * @param merkle - подписывать подписью версии 2
+     * @param chunkSize - размер куска для версии 2
+     */
+    public BatchSigner(Signer signer, int threads, long maxInFlight, boolean merkle, long chunkSize) {
+        if (threads <= 0 || maxInFlight < UNIT) {
+            throw new IllegalArgumentException("Threads and in-flight limit should be positive");
+        }
+        this.signer = signer;
+        this.threads = threads;
+        this.maxInFlight = maxInFlight;
+        this.merkle = merkle;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Итог пакетной подписи
+     */
+    public static final class Summary {
+        private final AtomicInteger signed = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+        private long nanos;
+
+        public int getSigned() {
+            return signed.get();
+        }
+
+        public int getFailed() {
+            return failures.size();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Список ошибок в виде {@code <путь>: <причина>}
+         */
+        public List<String> getFailures() {
+            return new ArrayList<>(failures);
+        }
+
+        @Override
+        public String toString() {
+            double seconds = nanos / 1e9;
+            StringBuilder result = new StringBuilder();
+            result.append(String.format(Locale.ROOT, "Signed: %d, failed: %d, %d bytes in %.2f s (%.1f MB/s, %.1f files/s)%n",
+                    getSigned(), getFailed(), getBytes(), seconds,
+                    seconds > 0 ? getBytes() / 1e6 / seconds : 0.0,
+                    seconds > 0 ? (getSigned() + getFailed()) / seconds : 0.0));
+            for(String now : failures) {
+                result.append("    FAILED ").append(now).append(System.lineSeparator());
+            }
+            return result.toString();
+        }
+    }
+
+    /**
+     * Собирает обычные файлы для подписи: рекурсивно по каталогу или по glob-шаблону ({@code dir/**.txt}).
+     * Уже подписанные файлы ({@code *.sig}) пропускаются.
+     * @param target - каталог или шаблон
+     * @return Список файлов
+     * @throws IOException
+     */
+    public static List<Path> collect(String target) throws IOException {
+        return collect(target, false);
+    }
+
+    /**
+     * Собирает обычные файлы рекурсивно по каталогу или по glob-шаблону ({@code dir/**.txt})
+     * @param target - каталог или шаблон
+     * @param signed - {@code true} - только подписанные файлы ({@code *.sig}), {@code false} - только неподписанные
+     * @return Список файлов
+     * @throws IOException
+     */
+    public static List<Path> collect(String target, boolean signed) throws IOException {
+        Path base = baseOf(target);
+        PathMatcher matcher = matcherOf(target);
+        if (Files.isRegularFile(base)) {
+            return List.of(base);
+        }
+        try (Stream<Path> walk = Files.walk(base)) {
+            return walk.filter(Files::isRegularFile)
+                       .filter(path -> path.getFileName().toString().endsWith(".sig") == signed)
+                       .filter(path -> matcher.matches(base.relativize(path)))
+                       .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Условие на путь, равносильное отбору в {@link #collect}, но без обхода диска: путь совпадает с {@code target},
+     * лежит внутри каталога {@code target} или подходит под glob-шаблон
+     * @param target - каталог, файл или шаблон
+     * @return Условие на путь
+     */
+    static Predicate<Path> selector(String target) {
+        Path base = baseOf(target).toAbsolutePath().normalize();
+        PathMatcher matcher = matcherOf(target);
+        return path -> {
+            Path now = path.toAbsolutePath().normalize();
+            return now.startsWith(base) && (now.equals(base) || matcher.matches(base.relativize(now)));
+        };
+    }
+
+    /**
+     * Каталог, от которого считается шаблон: {@code target} без glob-части
+     */
+    private static Path baseOf(String target) {
+        int glob = indexOfGlob(target);
+        if (glob < 0) {
+            return Paths.get(target);
+        }
+        int slash = lastSlash(target, glob);
+        return Paths.get(slash < 0 ? "." : target.substring(0, slash + 1));
+    }
+
+    /**
+     * Шаблон для путей относительно {@link #baseOf}: для каталога подходит любой путь
+     */
+    private static PathMatcher matcherOf(String target) {
+        int glob = indexOfGlob(target);
+        if (glob < 0) {
+            return path -> true;
+        }
+        int slash = lastSlash(target, glob);
+        return FileSystems.getDefault().getPathMatcher("glob:" + (slash < 0 ? target : target.substring(slash + 1)));
+    }
+
+    private static int lastSlash(String target, int glob) {
+        return Math.max(target.lastIndexOf('/', glob), target.lastIndexOf(File.separatorChar, glob));
+    }
+
+    private static int indexOfGlob(String target) {
+        for(int i = 0; i < target.length(); i++) {
+            if ("*?[{".indexOf(target.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Подписывает все файлы из списка
+     * @param files - файлы
+     * @return Итог
+     * @throws InterruptedException
+     */
+    public Summary signAll(List<Path> files) throws InterruptedException {
+        Summary summary = new Summary();
+        long start = System.nanoTime();
+        int limit = (int)Math.min(Integer.MAX_VALUE, maxInFlight / UNIT);
+        Semaphore inFlight = new Semaphore(limit);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        try {
+            List<Path> batch = new ArrayList<>();
+            List<Long> sizes = new ArrayList<>();                           // Размеры, за которые взят лимит
+            long batchBytes = 0;
+            for(Path path : files) {
+                long size;
+                try {
+                    size = Files.size(path);
+                }
+                catch (IOException e) {
+                    summary.failures.add(path + ": " + e);
+                    continue;
+                }
+
+                if (merkle || size >= SMALL_FILE) {
+                    submit(pool, inFlight, limit, streamBytes(size), () -> signLarge(path, summary));
+                    continue;
+                }
+
+                batch.add(path);
+                sizes.add(size);
+                batchBytes += size;
+                if (batch.size() >= BATCH_FILES || batchBytes >= BATCH_BYTES) {
+                    List<Path> now = batch;
+                    List<Long> nowSizes = sizes;
+                    submit(pool, inFlight, limit, batchBytes, () -> signSmall(now, nowSizes, summary));
+                    batch = new ArrayList<>();
+                    sizes = new ArrayList<>();
+                    batchBytes = 0;
+                }
+            }
+            if (!batch.isEmpty()) {
+                List<Path> now = batch;
+                List<Long> nowSizes = sizes;
+                submit(pool, inFlight, limit, batchBytes, () -> signSmall(now, nowSizes, summary));
+            }
+        }
+        finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        summary.nanos = System.nanoTime() - start;
+        return summary;
+    }
+
+    /**
+     * Память задачи для большого файла: кольцо буферов {@link ReadPipeline}, если файл читается им, иначе буфер чтения.
+     * Дерево Меркла конвейер не использует.
+     * @param size - размер файла
+     */
+    private long streamBytes(long size) {
+        if (!merkle && ReadMode.current().usePipeline(size)) {
+            return (long)ReadPipeline.getDepth() * ReadPipeline.BUFFER_SIZE;
+        }
+        return Math.min(size, STREAM_BYTES);
+    }
+
+    /**
+     * Ставит задачу в пул, предварительно забрав {@code bytes} из лимита данных в работе.
+     * Если лимит исчерпан, ждет, пока его освободят уже работающие задачи.
+     */
+    private static void submit(ExecutorService pool, Semaphore inFlight, int limit, long bytes, Runnable task) throws InterruptedException {
+        int permits = (int)Math.max(1, Math.min(limit, (bytes + UNIT - 1) / UNIT));
+        inFlight.acquire(permits);
+        pool.execute(() -> {
+            try {
+                task.run();
+            }
+            finally {
+                inFlight.release(permits);
+            }
+        });
+    }
+
+    private void signLarge(Path path, Summary summary) {
+        try {
+            long size = Files.size(path);
+            if (merkle) {
+                signer.signFileMerkle(path, chunkSize);
+            }
+            else {
+                signer.signFile(path);
+            }
+            summary.signed.incrementAndGet();
+            summary.bytes.addAndGet(size);
+        }
+        catch (Exception e) {
+            summary.failures.add(path + ": " + e);
+        }
+    }
+
+    /**
+     * Подписывает пачку небольших файлов. Файл читается не больше, чем размер, за который взят лимит:
+     * если он вырос с момента постановки в очередь, он подписывается потоком через {@link #signLarge}.
+     * @param paths - файлы
+     * @param sizes - размеры файлов при постановке в очередь
+     * @param summary - итог
+     */
+    private void signSmall(List<Path> paths, List<Long> sizes, Summary summary) {
+        byte[][] contents = new byte[paths.size()][];
+        boolean[] skipped = new boolean[contents.length];
+        List<Path> grown = new ArrayList<>();
+        for(int i = 0; i < contents.length; i++) {
+            try (FileChannel channel = FileChannel.open(paths.get(i), StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > sizes.get(i)) {
+                    grown.add(paths.get(i));
+                    contents[i] = new byte[0];
+                    skipped[i] = true;
+                    continue;
+                }
+                contents[i] = readContent(channel, size);
+            }
+            catch (IOException e) {
+                summary.failures.add(paths.get(i) + ": " + e);
+                contents[i] = new byte[0];
+                skipped[i] = true;
+            }
+        }
+
+        byte[][] hashes;
+        try {
+            hashes = DigestProvider.current().hashAll(contents);
+        }
+        catch (Exception e) {
+            for(Path now : paths) {
+                summary.failures.add(now + ": " + e);
+            }
+            return;
+        }
+
+        for(int i = 0; i < contents.length; i++) {
+            Path path = paths.get(i);
+            if (skipped[i]) {
+                continue;                                                   // Ошибка чтения уже записана или файл вырос
+            }
+            try {
+                Signer.appendSign(path, signer.signDigest(contents[i].length, hashes[i]));
+                summary.signed.incrementAndGet();
+                summary.bytes.addAndGet(contents[i].length);
+            }
+            catch (Exception e) {
+                summary.failures.add(path + ": " + e);
+            }
+        }
+        for(Path now : grown) {
+            signLarge(now, summary);
+        }
+    }
+
+    /**
+     * Читает первые {@code size} байт канала одним массивом. Если файл успел уменьшиться, возвращает то, что прочитано.
+     * @param channel - открытый канал файла
+     * @param size - сколько байт читать, не больше {@link Integer#MAX_VALUE}
+     * @return Содержимое
+     * @throws IOException
+     */
+    static byte[] readContent(FileChannel channel, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int)size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                break;                                                      // Файл стал короче
+            }
+        }
+        return buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+    }
+}
@@ -0,0 +1,123 @@
+package com.mirea;
+
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Массовая проверка подписанных файлов одним открытым ключом.
+ * </p> Каждый файл проверяется в своем виртуальном потоке (JDK 21+), чтобы блокирующее чтение
+ * с сетевых дисков перекрывалось. На более старых JDK используется пул обычных потоков.
+ * Одновременно проверяется не больше {@link #MAX_IN_FLIGHT} файлов: каждый держит открытый канал и буферы чтения.
+ * </p> Файлы только читаются. Итог собирается в {@link VerifyReport}.
+ */
+public final class BulkVerifier {
+
+    private static final int PLATFORM_THREADS = 4 * Runtime.getRuntime().availableProcessors();
+    static final int MAX_IN_FLIGHT = PLATFORM_THREADS;                      // Файлов в проверке одновременно
+
+    private final Verifier verifier;
+    private final boolean failFast;
+    private final VerifyCache cache;
+
+    /**
+     * @param verifier - проверяющий объект, общий для всех файлов
+     * @param failFast - остановиться на первой ошибке
+     */
+    public BulkVerifier(Verifier verifier, boolean failFast) {
+        this(verifier, failFast, null);
+    }
+
+    /**
+     * @param verifier - проверяющий объект, общий для всех файлов
+     * @param failFast - остановиться на первой ошибке
+     * @param cache - кэш результатов проверки или {@code null}
+     */
+    public BulkVerifier(Verifier verifier, boolean failFast, VerifyCache cache) {
+        this.verifier = verifier;
+        this.failFast = failFast;
+        this.cache = cache;
+    }
+
+    /**
+     * Создает исполнитель: поток на задачу через {@code Executors.newVirtualThreadPerTaskExecutor()},
+     * если он есть в текущем JDK, иначе пул обычных потоков
+     */
+    static ExecutorService newExecutor() {
+        return newExecutor(() -> Executors.newFixedThreadPool(PLATFORM_THREADS));
+    }
+
+    /**
+     * Как {@link #newExecutor()}, но без виртуальных потоков исполнитель создает {@code fallback}
+     */
+    static ExecutorService newExecutor(Supplier<ExecutorService> fallback) {
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)virtual.invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return fallback.get();
+        }
+    }
+
+    /**
+     * Проверяет все файлы из списка
+     * @param files - подписанные файлы
+     * @return Отчет по всем проверенным файлам
+     * @throws InterruptedException
+     */
+    public VerifyReport verifyAll(List<Path> files) throws InterruptedException {
+        VerifyReport report = new VerifyReport();
+        AtomicBoolean stop = new AtomicBoolean();
+        long start = System.nanoTime();
+
+        ExecutorService pool = newExecutor();
+        Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        try {
+            for(Path path : files) {
+                inFlight.acquire();
+                if (stop.get()) {
+                    inFlight.release();
+                    break;
+                }
+                pool.execute(() -> {
+                    if (stop.get()) {
+                        inFlight.release();
+                        return;
+                    }
+                    long begin = System.nanoTime();
+                    try {
+                        VerifyResult result = cache != null ? cache.verifyFile(verifier, path) : verifier.verifyFile(path);
+                        report.add(path, result, System.nanoTime() - begin);
+                        if (!result.isValid() && failFast) {
+                            stop.set(true);
+                        }
+                    }
+                    catch (Exception e) {
+                        report.addError(path, e, System.nanoTime() - begin);
+                        if (failFast) {
+                            stop.set(true);
+                        }
+                    }
+                    finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+        finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        report.setSkipped(files.size() - report.size());
+        report.setNanos(System.nanoTime() - start);
+        return report;
+    }
+}
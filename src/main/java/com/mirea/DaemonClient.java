@@ -0,0 +1,110 @@
+package com.mirea;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mirea.SignDaemon.Reply;
+
+/**
+ * Клиент {@link SignDaemon}: отправляет запросы по одному соединению окнами по {@link #WINDOW}
+ * без ожидания ответов, затем читает ответы по порядку. Запросы с ответом {@code BUSY} повторяются
+ * с растущей паузой, пока не пройдет {@link #RETRY_LIMIT_MS} мс.
+ */
+public final class DaemonClient implements AutoCloseable {
+
+    private static final int WINDOW = 256;                                  // Запросов без ожидания ответа
+    private static final long RETRY_LIMIT_MS = 30_000;                      // Сколько повторять BUSY
+    private static final long MAX_PAUSE_MS = 100;
+
+    private final SocketChannel channel;
+    private final InputStream in;
+    private final OutputStream out;
+
+    private DaemonClient(SocketChannel channel) {
+        this.channel = channel;
+        this.in = new BufferedInputStream(SignDaemon.input(channel));
+        this.out = new BufferedOutputStream(SignDaemon.output(channel));
+    }
+
+    /**
+     * Подключается к процессу на сокете {@code socket}
+     * @throws IOException - если процесс не запущен
+     */
+    public static DaemonClient connect(Path socket) throws IOException {
+        return new DaemonClient(SocketChannel.open(UnixDomainSocketAddress.of(socket)));
+    }
+
+    /**
+     * Отправляет один запрос
+     * @param command - команда
+     * @param argument - аргумент (путь или формат метрик), может быть пустым
+     * @return Ответ
+     * @throws IOException
+     */
+    public Reply send(SignDaemon.Command command, String argument) throws IOException, InterruptedException {
+        return send(command, List.of(argument)).get(0);
+    }
+
+    /**
+     * Отправляет одну команду для каждого аргумента
+     * @param command - команда
+     * @param arguments - аргументы
+     * @return Ответы в порядке аргументов
+     * @throws IOException
+     */
+    public List<Reply> send(SignDaemon.Command command, List<String> arguments) throws IOException, InterruptedException {
+        List<Reply> replies = new ArrayList<>(arguments.size());
+        for(int from = 0; from < arguments.size(); from += WINDOW) {
+            List<String> window = arguments.subList(from, Math.min(arguments.size(), from + WINDOW));
+            replies.addAll(sendWindow(command, window));
+        }
+        return replies;
+    }
+
+    private List<Reply> sendWindow(SignDaemon.Command command, List<String> arguments) throws IOException, InterruptedException {
+        Reply[] replies = new Reply[arguments.size()];
+        List<Integer> todo = new ArrayList<>();
+        for(int i = 0; i < replies.length; i++) {
+            todo.add(i);
+        }
+
+        long deadline = System.currentTimeMillis() + RETRY_LIMIT_MS;
+        long pause = 1;
+        while (true) {
+            for(int i : todo) {
+                String argument = arguments.get(i);
+                String line = argument.isEmpty() ? command.getName() : command.getName() + " " + argument;
+                out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+
+            List<Integer> busy = new ArrayList<>();
+            for(int i : todo) {
+                replies[i] = SignDaemon.readReply(in);
+                if (replies[i].getStatus().equals(Reply.BUSY)) {
+                    busy.add(i);
+                }
+            }
+            if (busy.isEmpty() || System.currentTimeMillis() >= deadline) {
+                return List.of(replies);
+            }
+            Thread.sleep(pause);                                            // Очередь полна - даем ей разгрузиться
+            pause = Math.min(pause * 2, MAX_PAUSE_MS);
+            todo = busy;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
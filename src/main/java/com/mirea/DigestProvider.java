@@ -0,0 +1,171 @@
+package com.mirea;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Реализации {@code SHA-256}, которыми пользуются подпись и проверка.
+ * </p> {@link #BUILTIN} - собственный {@link SHA256}.
+ * </p> {@link #JCA} - {@code MessageDigest} из JDK, который JVM ускоряет инструкциями SHA процессора.
+ * </p> Выбор задается флагом {@code --digest <name>} или свойством {@code -Dsign.digest=<name>}.
+ */
+public enum DigestProvider {
+
+    BUILTIN("builtin") {
+        @Override
+        public Hasher newHasher() {
+            return new SHA256();
+        }
+
+        @Override
+        public byte[][] hashAll(byte[][] contents) {
+            return SHA256.getHashes(contents);
+        }
+    },
+
+    JCA("jca") {
+        @Override
+        public Hasher newHasher() throws NoSuchAlgorithmException {
+            return new JcaHasher(MessageDigest.getInstance("SHA-256"));
+        }
+    };
+
+    public static final String PROPERTY = "sign.digest";                   // Системное свойство для выбора реализации
+
+    private static volatile DigestProvider current = BUILTIN;
+
+    private final String name;
+
+    DigestProvider(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Создает новый хешер этой реализации
+     * @return Хешер в начальном состоянии
+     * @throws NoSuchAlgorithmException
+     */
+    public abstract Hasher newHasher() throws NoSuchAlgorithmException;
+
+    /**
+     * Высчитывает хеш-суммы набора небольших сообщений, уже прочитанных в память
+     * @param contents - сообщения
+     * @return Хеш-суммы в том же порядке
+     * @throws NoSuchAlgorithmException
+     */
+    public byte[][] hashAll(byte[][] contents) throws NoSuchAlgorithmException {
+        byte[][] result = new byte[contents.length][];
+        Hasher hasher = newHasher();
+        for(int i = 0; i < contents.length; i++) {
+            hasher.update(contents[i]);
+            result[i] = hasher.digest();
+        }
+        return result;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Возвращает реализацию по имени
+     * @param name - имя реализации ({@code builtin} или {@code jca})
+     * @return Реализация
+     * @throws IllegalArgumentException - если такой реализации нет
+     */
+    public static DigestProvider forName(String name) {
+        for(DigestProvider now : values()) {
+            if (now.name.equalsIgnoreCase(name)) {
+                return now;
+            }
+        }
+        throw new IllegalArgumentException("Unknown digest provider: " + name);
+    }
+
+    /**
+     * Текущая выбранная реализация
+     */
+    public static DigestProvider current() {
+        return current;
+    }
+
+    public static void select(DigestProvider provider) {
+        current = provider;
+    }
+
+    /**
+     * Выбирает реализацию: сначала {@code flag} из командной строки, затем системное свойство {@link #PROPERTY}.
+     * Если ничего не задано, остается {@link #BUILTIN}.
+     * @param flag - значение флага {@code --digest} или {@code null}
+     */
+    public static void configure(String flag) {
+        String name = flag != null ? flag : System.getProperty(PROPERTY);
+        if (name != null) {
+            select(forName(name));
+        }
+    }
+
+    /**
+     * Самопроверка: все реализации должны дать одинаковую хеш-сумму на одном и том же сообщении.
+     * Сообщение подается кусками разной длины, чтобы задеть и неполные блоки.
+     * @return {@code true}, если все доступные реализации совпали
+     */
+    public static boolean selfTest() {
+        byte[] message = new byte[3 * SHA256.BLOCK_SIZE + 7];
+        for(int i = 0; i < message.length; i++) {
+            message[i] = (byte)(i * 31 + 7);
+        }
+
+        byte[] expected = null;
+        for(DigestProvider now : values()) {
+            byte[] actual;
+            try {
+                Hasher hasher = now.newHasher();
+                hasher.update(message, 0, 5);
+                hasher.update(ByteBuffer.wrap(message, 5, 100));
+                hasher.update(message, 105, message.length - 105);
+                actual = hasher.digest();
+            }
+            catch (NoSuchAlgorithmException e) {
+                return false;
+            }
+
+            if (expected == null) {
+                expected = actual;
+            }
+            else if (!Arrays.equals(expected, actual)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Обертка над {@link MessageDigest}
+     */
+    private static class JcaHasher implements Hasher {
+        private final MessageDigest md;
+
+        JcaHasher(MessageDigest md) {
+            this.md = md;
+        }
+
+        @Override
+        public void update(byte[] source, int offset, int length) {
+            md.update(source, offset, length);
+        }
+
+        @Override
+        public void update(ByteBuffer source) {
+            md.update(source);
+        }
+
+        @Override
+        public byte[] digest() {
+            return md.digest();
+        }
+    }
+}
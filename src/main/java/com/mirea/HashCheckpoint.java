@@ -0,0 +1,191 @@
+package com.mirea;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Точка продолжения хеширования для файлов, которые только дописываются (журналы, логи).
+ * </p> Хранит состояние {@link SHA256} на границе блока после первых {@link #getOffset()} байт файла
+ * и несколько выборочных хешей этого префикса. При повторной подписи префикс считается неизменным,
+ * если файл тот же (inode), не стал короче и все выборки совпали, и тогда хешируется только дописанный хвост.
+ * Выборки ловят усечение, замену файла и перезапись начала или конца префикса, но не любую правку
+ * в середине: такая правка попадет в подпись со старым хешем, и проверка подписи ее отвергнет.
+ * </p> Файл точки: {@code <файл>.ckpt}, в конце лежит {@code SHA-256} всего содержимого.
+ */
+final class HashCheckpoint {
+
+    private static final byte[] MAGIC = "ozzckp".getBytes();
+    private static final int SAMPLES = 8;                                   // Выборок по префиксу
+    private static final int SAMPLE_SIZE = 4096;                            // Байт в одной выборке
+
+    private final long offset;
+    private final byte[] state;
+    private final String inode;
+    private final long[] positions;
+    private final byte[][] hashes;
+
+    private HashCheckpoint(long offset, byte[] state, String inode, long[] positions, byte[][] hashes) {
+        this.offset = offset;
+        this.state = state;
+        this.inode = inode;
+        this.positions = positions;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Путь до файла точки для файла {@code path}
+     */
+    static Path pathFor(Path path) {
+        return path.resolveSibling(path.getFileName() + ".ckpt");
+    }
+
+    /**
+     * Сколько байт от начала файла покрывает состояние
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Состояние {@link SHA256} после {@link #getOffset()} байт
+     */
+    byte[] getState() {
+        return state;
+    }
+
+    /**
+     * Создает точку для первых {@code offset} байт файла
+     * @param channel - канал файла
+     * @param path - путь до файла
+     * @param offset - граница блока
+     * @param state - выгруженное состояние {@link SHA256#exportState()} после {@code offset} байт
+     * @return Точка продолжения
+     * @throws IOException
+     */
+    static HashCheckpoint create(FileChannel channel, Path path, long offset, byte[] state) throws IOException {
+        int count = offset == 0 ? 0 : (int)Math.min(SAMPLES, (offset + SAMPLE_SIZE - 1) / SAMPLE_SIZE);
+        long[] positions = new long[count];
+        byte[][] hashes = new byte[count][];
+        for(int i = 0; i < count; i++) {                                    // Начало, конец и равномерно между ними
+            long last = Math.max(0, offset - SAMPLE_SIZE);
+            positions[i] = count == 1 ? 0 : last * i / (count - 1);
+            hashes[i] = sample(channel, positions[i], offset);
+        }
+        return new HashCheckpoint(offset, state, inodeOf(path), positions, hashes);
+    }
+
+    /**
+     * Проверяет, что префикс файла, покрытый точкой, не изменился
+     * @param channel - канал файла
+     * @param path - путь до файла
+     * @return {@code true}, если хеширование можно продолжить с {@link #getOffset()}
+     * @throws IOException
+     */
+    boolean matches(FileChannel channel, Path path) throws IOException {
+        if (channel.size() < offset || !inode.equals(inodeOf(path))) {
+            return false;
+        }
+        for(int i = 0; i < positions.length; i++) {
+            if (!Arrays.equals(hashes[i], sample(channel, positions[i], offset))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] sample(FileChannel channel, long position, long limit) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(SAMPLE_SIZE, limit - position));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+        }
+        return SHA256.getHash(buffer.array());
+    }
+
+    private static String inodeOf(Path path) throws IOException {
+        return Objects.toString(Files.readAttributes(path, BasicFileAttributes.class).fileKey(), "");
+    }
+
+    /**
+     * Читает точку из файла
+     * @param file - файл точки
+     * @return Точка или {@code null}, если файла нет или он испорчен
+     * @throws IOException - если файл есть, но не читается
+     */
+    static HashCheckpoint load(Path file) throws IOException {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+        if (data.length < MAGIC.length + SHA256.DIGEST_SIZE
+                || !Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length)
+                || !Arrays.equals(SHA256.getHash(Arrays.copyOf(data, data.length - SHA256.DIGEST_SIZE)),
+                                  Arrays.copyOfRange(data, data.length - SHA256.DIGEST_SIZE, data.length))) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, MAGIC.length, data.length - MAGIC.length - SHA256.DIGEST_SIZE))) {
+            long offset = in.readLong();
+            byte[] state = new byte[SHA256.STATE_SIZE];
+            in.readFully(state);
+            String inode = in.readUTF();
+            int count = in.readInt();
+            if (offset < 0 || count < 0 || count > SAMPLES) {
+                return null;
+            }
+            long[] positions = new long[count];
+            byte[][] hashes = new byte[count][SHA256.DIGEST_SIZE];
+            for(int i = 0; i < count; i++) {
+                positions[i] = in.readLong();
+                in.readFully(hashes[i]);
+                if (positions[i] < 0 || positions[i] >= offset) {
+                    return null;
+                }
+            }
+            return new HashCheckpoint(offset, state, inode, positions, hashes);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Записывает точку в файл через временный файл и атомарный перенос
+     * @param file - файл точки
+     * @throws IOException
+     */
+    void save(Path file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeLong(offset);
+            out.write(state);
+            out.writeUTF(inode);
+            out.writeInt(positions.length);
+            for(int i = 0; i < positions.length; i++) {
+                out.writeLong(positions[i]);
+                out.write(hashes[i]);
+            }
+        }
+        byte[] data = bytes.toByteArray();
+        byte[] result = Arrays.copyOf(data, data.length + SHA256.DIGEST_SIZE);
+        System.arraycopy(SHA256.getHash(data), 0, result, data.length, SHA256.DIGEST_SIZE);
+        Signer.writeAtomically(file, result);
+    }
+}
@@ -0,0 +1,37 @@
+package com.mirea;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Инкрементальный хешер: данные подаются частями через {@code update}, результат забирается через {@link #digest()}.
+ */
+public interface Hasher {
+
+    /**
+     * Добавляет {@code length} байт из {@code source}, начиная с {@code offset}, к хешируемому сообщению
+     * @param source - массив байт
+     * @param offset - смещение
+     * @param length - количество байт
+     */
+    void update(byte[] source, int offset, int length);
+
+    /**
+     * Добавляет оставшиеся байты буфера {@code source} к хешируемому сообщению
+     * @param source - буфер
+     */
+    void update(ByteBuffer source);
+
+    /**
+     * Завершает вычисление и возвращает хешер в начальное состояние
+     * @return Хеш-сумма
+     */
+    byte[] digest();
+
+    /**
+     * Добавляет весь массив {@code source} к хешируемому сообщению
+     * @param source - массив байт
+     */
+    default void update(byte[] source) {
+        update(source, 0, source.length);
+    }
+}
@@ -0,0 +1,240 @@
+package com.mirea;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.mirea.SignRSA.KeyPair.PrivateKey;
+import com.mirea.SignRSA.KeyPair.PublicKey;
+
+/**
+ * Формат файла ключа.
+ * </p> {@link #TEXT} - числа в десятичной записи, по одному в строке (открытый: e, N; закрытый: d, N[, p, q, dP, dQ, qInv]).
+ * </p> {@link #BINARY} - версионированный двоичный формат без перевода из десятичной записи:
+ * <pre>
+ * | Метка  | Версия | Тип    | Кол-во чисел | (Длина 4 байта | Число big-endian) * n | Отпечаток |
+ * | 6 байт | 1 байт | 1 байт |    1 байт    |                                       |  32 байта |
+ * </pre>
+ * Тип: 1 - открытый ключ, 2 - закрытый. Отпечаток ключа - {@code SHA-256} модуля N (см. {@link #fingerprint}),
+ * он одинаков у открытого и закрытого ключа одной пары и проверяется при загрузке.
+ * </p> Загрузчики в {@link SignRSA} определяют формат по метке в начале файла.
+ */
+public enum KeyFormat {
+
+    TEXT("text"),
+    BINARY("binary");
+
+    private static final byte[] MAGIC = "ozzkey".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 1;
+    private static final byte TYPE_PUBLIC = 1;
+    private static final byte TYPE_PRIVATE = 2;
+    private static final int MAX_COMPONENT = 4096;                          // Предел длины одного числа в байтах
+
+    private final String name;
+
+    KeyFormat(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Возвращает формат по имени
+     * @param name - имя формата ({@code text} или {@code binary})
+     * @return Формат
+     * @throws IllegalArgumentException - если такого формата нет
+     */
+    public static KeyFormat forName(String name) {
+        for(KeyFormat now : values()) {
+            if (now.name.equalsIgnoreCase(name)) {
+                return now;
+            }
+        }
+        throw new IllegalArgumentException("Unknown key format: " + name);
+    }
+
+    /**
+     * Определяет формат по содержимому файла
+     * @param data - содержимое файла ключа
+     * @return {@link #BINARY}, если файл начинается с метки, иначе {@link #TEXT}
+     */
+    public static KeyFormat detect(byte[] data) {
+        return data.length >= MAGIC.length && Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length) ? BINARY : TEXT;
+    }
+
+    /**
+     * Определяет тип ключа. Двоичный файл хранит тип сам; текстовый из 7 чисел - закрытый,
+     * из 2 чисел - закрытый, если имя файла начинается с {@code PrivateKey}, иначе открытый.
+     * @param data - содержимое файла ключа
+     * @param fileName - имя файла
+     * @return {@code true} для закрытого ключа
+     * @throws IOException - если файл испорчен
+     */
+    public static boolean isPrivate(byte[] data, String fileName) throws IOException {
+        if (detect(data) == BINARY) {
+            if (data.length <= MAGIC.length + 1) {
+                throw new IOException("Key file is truncated");
+            }
+            return data[MAGIC.length + 1] == TYPE_PRIVATE;
+        }
+        int count = decodeText(data).length;
+        return count == 7 || (count == 2 && fileName.startsWith("PrivateKey"));
+    }
+
+    /**
+     * Отпечаток пары ключей: {@code SHA-256} от модуля N (big-endian, без ведущих нулей)
+     * @param N - модуль
+     * @return 32 байта отпечатка
+     */
+    public static byte[] fingerprint(BigInteger N) {
+        byte[] modulus = N.toByteArray();
+        int start = modulus.length > 1 && modulus[0] == 0 ? 1 : 0;         // Знаковый ноль не входит в отпечаток
+        return SHA256.getHash(Arrays.copyOfRange(modulus, start, modulus.length));
+    }
+
+    /**
+     * Записывает открытый ключ в этом формате
+     * @param key - открытый ключ
+     * @return Содержимое файла
+     */
+    public byte[] encode(PublicKey key) {
+        BigInteger[] parts = { key.e, key.N };
+        return this == BINARY ? encodeBinary(TYPE_PUBLIC, parts, key.N) : encodeText(parts);
+    }
+
+    /**
+     * Записывает закрытый ключ в этом формате. Компоненты CRT пишутся, только если они есть.
+     * @param key - закрытый ключ
+     * @return Содержимое файла
+     */
+    public byte[] encode(PrivateKey key) {
+        BigInteger[] parts = key.hasCRT()
+                ? new BigInteger[] { key.d, key.N, key.p, key.q, key.dP, key.dQ, key.qInv }
+                : new BigInteger[] { key.d, key.N };
+        return this == BINARY ? encodeBinary(TYPE_PRIVATE, parts, key.N) : encodeText(parts);
+    }
+
+    /**
+     * Читает открытый ключ в любом формате
+     * @param data - содержимое файла
+     * @return Открытый ключ
+     * @throws IOException - если файл испорчен
+     */
+    public static PublicKey decodePublic(byte[] data) throws IOException {
+        BigInteger[] parts = detect(data) == BINARY ? decodeBinary(data, TYPE_PUBLIC) : decodeText(data);
+        if (parts.length < 2) {
+            throw new IOException("Public key should contain e and N");
+        }
+        return new PublicKey(parts[0], parts[1]);
+    }
+
+    /**
+     * Читает закрытый ключ в любом формате
+     * @param data - содержимое файла
+     * @return Закрытый ключ
+     * @throws IOException - если файл испорчен
+     */
+    public static PrivateKey decodePrivate(byte[] data) throws IOException {
+        BigInteger[] parts = detect(data) == BINARY ? decodeBinary(data, TYPE_PRIVATE) : decodeText(data);
+        if (parts.length != 2 && parts.length != 7) {
+            throw new IOException("Private key should contain d, N and optionally p, q, dP, dQ, qInv");
+        }
+        PrivateKey result = new PrivateKey(parts[0], parts[1]);
+        if (parts.length == 7) {                                            // Есть компоненты CRT
+            result.p = parts[2];
+            result.q = parts[3];
+            result.dP = parts[4];
+            result.dQ = parts[5];
+            result.qInv = parts[6];
+        }
+        return result;
+    }
+
+    private static byte[] encodeText(BigInteger[] parts) {
+        StringBuilder result = new StringBuilder();
+        for(int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                result.append('\n');
+            }
+            result.append(parts[i].toString());
+        }
+        return result.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static BigInteger[] decodeText(byte[] data) throws IOException {
+        String[] lines = new String(data, StandardCharsets.US_ASCII).split("\r?\n");
+        int count = lines.length;
+        while (count > 0 && lines[count - 1].isEmpty()) {                   // Пустые строки в конце файла
+            count--;
+        }
+        BigInteger[] result = new BigInteger[count];
+        try {
+            for(int i = 0; i < count; i++) {
+                result[i] = new BigInteger(lines[i].trim());
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Incorrect number in key file", e);
+        }
+        return result;
+    }
+
+    private static byte[] encodeBinary(byte type, BigInteger[] parts, BigInteger N) {
+        byte[][] magnitudes = new byte[parts.length][];
+        int size = MAGIC.length + 3 + SHA256.DIGEST_SIZE;
+        for(int i = 0; i < parts.length; i++) {
+            byte[] bytes = parts[i].toByteArray();
+            int start = bytes.length > 1 && bytes[0] == 0 ? 1 : 0;
+            magnitudes[i] = parts[i].signum() == 0 ? new byte[0] : Arrays.copyOfRange(bytes, start, bytes.length);
+            size += Integer.BYTES + magnitudes[i].length;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(MAGIC).put(VERSION).put(type).put((byte)parts.length);
+        for(byte[] now : magnitudes) {
+            out.putInt(now.length).put(now);
+        }
+        out.put(fingerprint(N));
+        return out.array();
+    }
+
+    private static BigInteger[] decodeBinary(byte[] data, byte type) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        try {
+            in.position(MAGIC.length);
+            if (in.get() != VERSION) {
+                throw new IOException("Unsupported key file version");
+            }
+            if (in.get() != type) {
+                throw new IOException(type == TYPE_PUBLIC ? "Not a public key file" : "Not a private key file");
+            }
+            BigInteger[] result = new BigInteger[in.get() & 0xFF];
+            for(int i = 0; i < result.length; i++) {
+                int length = in.getInt();
+                if (length < 0 || length > MAX_COMPONENT) {
+                    throw new IOException("Incorrect number length in key file");
+                }
+                result[i] = new BigInteger(1, data, in.position(), length);
+                in.position(in.position() + length);
+            }
+
+            byte[] stored = new byte[SHA256.DIGEST_SIZE];
+            in.get(stored);
+            if (in.hasRemaining()) {
+                throw new IOException("Unexpected data after key");
+            }
+            if (result.length < 2 || !Arrays.equals(stored, fingerprint(result[1]))) {
+                throw new IOException("Key fingerprint mismatch");
+            }
+            return result;
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Key file is truncated", e);
+        }
+    }
+}
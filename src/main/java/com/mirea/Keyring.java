@@ -0,0 +1,137 @@
+package com.mirea;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.mirea.SignRSA.KeyPair.PublicKey;
+
+/**
+ * Набор открытых ключей из каталога с файлами {@code PublicKey*}, индексированный по отпечатку ключа.
+ * </p> При загрузке для каждого файла считается отпечаток ({@link KeyFormat#fingerprint}), индекс
+ * отпечаток -> файл хранится в памяти целиком. Разобранные ключи вместе с их предвычислениями
+ * ({@link ModExpEngine}) держатся в LRU-кэше ограниченного размера; вытесненный ключ при следующем
+ * обращении читается из файла заново.
+ * </p> Объект безопасен для использования из нескольких потоков.
+ */
+public final class Keyring {
+
+    public static final int DEFAULT_CACHE_SIZE = 256;                       // Разобранных ключей в кэше по умолчанию
+
+    private final Map<String, Path> index;                                  // Отпечаток (hex) -> файл ключа
+    private final Map<String, PublicKey> cache;                             // Отпечаток (hex) -> ключ, в порядке обращения
+
+    private Keyring(Map<String, Path> index, int cacheSize) {
+        this.index = index;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PublicKey> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Загружает все файлы {@code PublicKey*} из каталога
+     * @param directory - каталог с открытыми ключами
+     * @return Набор ключей
+     * @throws IOException
+     */
+    public static Keyring load(Path directory) throws IOException {
+        return load(directory, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Загружает все файлы {@code PublicKey*} из каталога
+     * @param directory - каталог с открытыми ключами
+     * @param cacheSize - сколько разобранных ключей держать в памяти
+     * @return Набор ключей
+     * @throws IOException
+     */
+    public static Keyring load(Path directory, int cacheSize) throws IOException {
+        if (cacheSize <= 0) {
+            throw new IllegalArgumentException("Cache size should be positive");
+        }
+        Map<String, Path> index = new HashMap<>();
+        Map<String, PublicKey> warm = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "PublicKey*")) {
+            for(Path now : files) {
+                if (!Files.isRegularFile(now)) {
+                    continue;
+                }
+                PublicKey key = SignRSA.getPublicKey(now.toString());
+                String id = SHA256.bytesToHex(key.fingerprint());
+                if (index.putIfAbsent(id, now) == null && warm.size() < cacheSize) {
+                    warm.put(id, key);                                      // Первые ключи сразу в кэш
+                }
+            }
+        }
+
+        Keyring result = new Keyring(index, cacheSize);
+        result.cache.putAll(warm);
+        return result;
+    }
+
+    /**
+     * Количество разных ключей
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Есть ли в наборе ключ с отпечатком {@code fingerprint}
+     */
+    boolean contains(byte[] fingerprint) {
+        return index.containsKey(SHA256.bytesToHex(fingerprint));
+    }
+
+    /**
+     * Возвращает ключ по отпечатку
+     * @param fingerprint - отпечаток ключа
+     * @return Ключ или {@code null}, если такого ключа нет
+     * @throws IOException - если файл ключа не читается или после индексации в нем оказался другой ключ
+     */
+    PublicKey get(byte[] fingerprint) throws IOException {
+        String id = SHA256.bytesToHex(fingerprint);
+        synchronized (cache) {
+            PublicKey key = cache.get(id);
+            if (key != null) {
+                return key;
+            }
+        }
+
+        Path path = index.get(id);
+        if (path == null) {
+            return null;
+        }
+        PublicKey key = SignRSA.getPublicKey(path.toString());             // Читаем вне блокировки
+        if (!SHA256.bytesToHex(key.fingerprint()).equals(id)) {             // Файл заменили после загрузки набора
+            throw new IOException("Key file " + path + " no longer matches fingerprint " + id);
+        }
+        synchronized (cache) {
+            PublicKey other = cache.putIfAbsent(id, key);
+            return other != null ? other : key;
+        }
+    }
+
+    /**
+     * Единственный ключ набора или {@code null}, если ключей несколько
+     * @throws IOException - если файл ключа не читается
+     */
+    PublicKey single() throws IOException {
+        if (index.size() != 1) {
+            return null;
+        }
+        synchronized (cache) {
+            if (!cache.isEmpty()) {
+                return cache.values().iterator().next();
+            }
+        }
+        return SignRSA.getPublicKey(index.values().iterator().next().toString());
+    }
+}
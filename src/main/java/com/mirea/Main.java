@@ -1,28 +1,224 @@
 package com.mirea;
 
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 
 
 public class Main {
     
+    private static final String PIPE = "-";                                 // Путь для stdin/stdout
+    private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+
     static String info[] = {
         "Functional:\n",
         "    Generate key: java Sign.jar -k <PATH for keys>\n",
         "    Encrypt file: java Sign.jar -e <PATH to file> <PATH to private key>\n",
-        "    Decrypt file: java Sign.jar -d <PATH to file> <PATH to public key>\n"
+        "    Verify file:  java Sign.jar -d <PATH to file> <PATH to public key or DIR of PublicKey* files>\n",
+        "    Restore file: java Sign.jar -r <PATH to file> <PATH to public key>\n",
+        "    Encrypt tree: java Sign.jar -E <DIR or GLOB> <PATH to private key>\n",
+        "    Verify tree:  java Sign.jar -D <DIR or GLOB> <PATH to public key or DIR of PublicKey* files>\n",
+        "    Convert key:  java Sign.jar -c <PATH to key> <PATH to new key>\n",
+        "    Daemon:       java Sign.jar -S <PATH to socket> <PATH to private key or -> <PATH to public key, DIR or ->\n",
+        "    Client:       java Sign.jar -C <PATH to socket> <sign|sign-detached|verify|verify-detached|metrics|ping> [PATH...]\n",
+        "    Pipe mode:    -e - <key> signs stdin to stdout; -d - <key> checks stdin, writes content to stdout, status to stderr\n",
+        "Options:\n",
+        "    --digest <builtin|jca>   SHA-256 implementation (default: builtin, or -Dsign.digest)\n",
+        "    --io <stream|mmap|pipeline|auto>  how file content is read for hashing (default: auto, or -Dsign.io)\n",
+        "    --io-depth <N>           buffers read ahead by the pipeline reader (default: 4, or -Dsign.io.depth)\n",
+        "    --merkle                 -e: sign with v2 trailer (parallel Merkle tree over chunks)\n",
+        "    --count <N>              -k: generate N key pairs on all cores\n",
+        "    --format <text|binary>   -k: key file format (default: text); -c: target format (default: binary)\n",
+        "    --detached               -e: write a separate <file>.sig, leave the file untouched; -d: check <file> by <file>.sig\n",
+        "    --timestamp              -e --detached: store the file modification time in the sign\n",
+        "    --incremental            -e: like --detached for append-only files, re-hash only the appended tail (<file>.ckpt)\n",
+        "    --chunk-size <bytes>     -e: chunk size for --merkle, at least 65536 (default: 4194304)\n",
+        "    --threads <N>            -E, -S: worker threads (default: number of CPUs)\n",
+        "    --queue <N>              -S: queued requests before clients get BUSY (default: 1024)\n",
+        "    --max-inflight <bytes>   -E: limit of file data held in memory at once (default: 268435456)\n",
+        "    --manifest <file>        -E: write one signed manifest of all files instead of signing each;\n",
+        "                             -D: verify files against the manifest (DIR or GLOB selects a subset)\n",
+        "    --cache <file>           -d, -D: remember verified files and skip re-hashing unchanged ones\n",
+        "    --paranoid               -d, -D: with --cache, re-verify everything (the cache is still updated)\n",
+        "    --fail-fast              -D: stop at the first invalid file\n",
+        "    --report <json|csv>      -D: print per-file report with status and timing\n",
+        "    --metrics <prometheus|json>  print phase timings and counters to stderr on exit (or -Dsign.metrics=true)\n",
+        "    --metrics-file <file>    with --metrics, write them to a file instead of stderr\n"
     };
 
-    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+    /**
+     * Достает из аргументов значение опции {@code name} и удаляет ее вместе со значением
+     * @param args - аргументы командной строки
+     * @param name - имя опции
+     * @return Значение опции или {@code null}, если опция не задана
+     */
+    static String takeOption(List<String> args, String name) {
+        int index = args.indexOf(name);
+        if (index < 0) {
+            return null;
+        }
+        if (index + 1 >= args.size()) {
+            throw new IndexOutOfBoundsException("Missing value for " + name);
+        }
+        String value = args.get(index + 1);
+        args.remove(index + 1);
+        args.remove(index);
+        return value;
+    }
+
+    /**
+     * Проверяет наличие флага {@code name} без значения и удаляет его
+     * @param args - аргументы командной строки
+     * @param name - имя флага
+     * @return {@code true}, если флаг задан
+     */
+    static boolean takeFlag(List<String> args, String name) {
+        return args.remove(name);
+    }
+
+    /**
+     * Проверяет число аргументов команды до начала работы, чтобы ошибки внутри команды не выдавались за нехватку аргументов
+     * @param args - аргументы без опций, включая флаг команды
+     * @param count - требуемое число аргументов вместе с флагом
+     * @param usage - ожидаемый вид команды
+     * @return {@code true}, если аргументов не хватает и сообщение уже выведено
+     */
+    static boolean missingArguments(String[] args, int count, String usage) {
+        if (args.length >= count) {
+            return false;
+        }
+        System.out.println("Missing arguments. Expected " + usage);
+        return true;
+    }
+
+    /**
+     * Выбирает реализацию SHA-256 и сверяет все реализации между собой
+     * @param flag - значение {@code --digest} или {@code null}
+     */
+    static void setupDigest(String flag) {
+        DigestProvider.configure(flag);
+        if (!DigestProvider.selfTest() && DigestProvider.current() != DigestProvider.BUILTIN) {
+            System.err.println("WARNING: digest self-test failed for " + DigestProvider.current().getName() + ", falling back to builtin");
+            DigestProvider.select(DigestProvider.BUILTIN);
+        }
+    }
+
+    /**
+     * Стандартный вывод для данных в режиме конвейера: без {@link java.io.PrintStream}, который глотает ошибки записи
+     */
+    static OutputStream stdout() {
+        return new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), PIPE_BUFFER_SIZE);
+    }
+
+    /**
+     * Включает метрики и выводит их при завершении процесса, в том числе через {@code System.exit}
+     * @param format - значение {@code --metrics} или {@code null}
+     * @param file - значение {@code --metrics-file} или {@code null} для stderr
+     */
+    static void setupMetrics(String format, String file) {
+        if (format == null) {
+            if (file != null) {
+                throw new IllegalArgumentException("--metrics-file requires --metrics");
+            }
+            return;
+        }
+        Metrics.export(format);                                             // Проверка формата до работы
+        Metrics.setEnabled(true);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            String text = Metrics.export(format);
+            if (file == null) {
+                System.err.print(text);
+                return;
+            }
+            try {
+                Files.writeString(Paths.get(file), text);
+            }
+            catch (IOException e) {
+                System.err.println("ERROR: metrics not written: " + e.getMessage());
+            }
+        }));
+    }
+
+    public static void main(String[] argv) throws IOException, NoSuchAlgorithmException {
         
+        List<String> options = new ArrayList<>(List.of(argv));
+        boolean merkle;
+        long chunkSize;
+        int threads;
+        long maxInFlight;
+        int count;
+        String format;
+        boolean detached;
+        boolean incremental;
+        boolean timestamp;
+        String cacheFile;
+        boolean paranoid;
+        boolean failFast;
+        String report;
+        String manifest;
+        int queueSize;
+        try {
+            setupMetrics(takeOption(options, "--metrics"), takeOption(options, "--metrics-file"));
+            setupDigest(takeOption(options, "--digest"));
+            ReadMode.configure(takeOption(options, "--io"));
+            ReadPipeline.configure(takeOption(options, "--io-depth"));
+            String chunk = takeOption(options, "--chunk-size");
+            merkle = takeFlag(options, "--merkle") || chunk != null;
+            chunkSize = chunk != null ? Long.parseLong(chunk) : MerkleHash.DEFAULT_CHUNK_SIZE;
+            if (chunkSize < MerkleHash.MIN_CHUNK_SIZE) {
+                throw new IllegalArgumentException("Chunk size should be at least " + MerkleHash.MIN_CHUNK_SIZE);
+            }
+            String threadsOption = takeOption(options, "--threads");
+            threads = threadsOption != null ? Integer.parseInt(threadsOption) : Runtime.getRuntime().availableProcessors();
+            String inFlightOption = takeOption(options, "--max-inflight");
+            maxInFlight = inFlightOption != null ? Long.parseLong(inFlightOption) : BatchSigner.DEFAULT_MAX_IN_FLIGHT;
+            String countOption = takeOption(options, "--count");
+            count = countOption != null ? Integer.parseInt(countOption) : 1;
+            if (count <= 0) {
+                throw new IllegalArgumentException("Count should be positive");
+            }
+            format = takeOption(options, "--format");
+            if (format != null) {
+                KeyFormat.forName(format);
+            }
+            incremental = takeFlag(options, "--incremental");
+            detached = takeFlag(options, "--detached") || incremental;
+            timestamp = takeFlag(options, "--timestamp");
+            cacheFile = takeOption(options, "--cache");
+            paranoid = takeFlag(options, "--paranoid");
+            failFast = takeFlag(options, "--fail-fast");
+            report = takeOption(options, "--report");
+            manifest = takeOption(options, "--manifest");
+            String queueOption = takeOption(options, "--queue");
+            queueSize = queueOption != null ? Integer.parseInt(queueOption) : SignDaemon.DEFAULT_QUEUE_SIZE;
+            if (report != null && !report.equals("json") && !report.equals("csv")) {
+                throw new IllegalArgumentException("Unknown report format: " + report);
+            }
+        }
+        catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            return;
+        }
+        String[] args = options.toArray(new String[0]);
+
         String filename = "";
         String privatekey = "";
         String publickey = "";
         
         if (args.length == 0) {
-            System.out.println("Cannot detect flag <-h, -k, -e, -d>");
+            System.out.println("Cannot detect flag <-h, -k, -e, -E, -d, -D, -r, -c, -S, -C>");
             for(String now : info) {
                 System.out.print(now);
             }
@@ -36,46 +232,292 @@ public class Main {
                 }
                 break;
             case "-k":
+                if (missingArguments(args, 2, "-k <PATH>")) {
+                    break;
+                }
                 try {
                     filename = args[1];
-                SignRSA.generateKeys(filename);
+                    SignRSA.generateKeys(filename, count, format != null ? KeyFormat.forName(format) : KeyFormat.TEXT);
                 } 
                 catch (IOException e) {
                     System.out.println("ERROR: Failed to create files.");
                 }
-                catch (IndexOutOfBoundsException e) {
-                    System.out.println("Missing arguments. Expected -k <PATH>");
-                }
                 
                 break;
             case "-e":
+                if (missingArguments(args, 3, "-e <PATH> <PATH>")) {
+                    break;
+                }
+                try {
+                    filename = args[1];
+                    privatekey = args[2];
+                    Signer signer = Signer.fromKeyFile(privatekey);
+                    if (filename.equals(PIPE)) {
+                        signer.sign(System.in, stdout());
+                        System.err.println("The stream is signed succesfully.");
+                        break;
+                    }
+                    if (incremental) {
+                        signer.signFileIncremental(Paths.get(filename), timestamp);
+                    }
+                    else if (detached) {
+                        signer.signFileDetached(Paths.get(filename), timestamp);
+                    }
+                    else if (merkle) {
+                        signer.signFileMerkle(Paths.get(filename), chunkSize);
+                    }
+                    else {
+                        signer.signFile(Paths.get(filename));
+                    }
+                    System.out.println("The file is signed succesfully.");
+                }
+                catch (NoSuchFileException e) {
+                    System.out.println("ERROR: file " + e.getFile() + " is not exist");
+                }
+                catch (IOException e) {
+                    System.out.println("Something went wrong! The file could not be signed.");
+                }
+                catch (IllegalArgumentException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                }
+                break;
+            case "-E":
+                if (missingArguments(args, 3, "-E <DIR|GLOB> <PATH>")) {
+                    break;
+                }
                 try {
                     filename = args[1];
                     privatekey = args[2];
-                    SignRSA.signingFile(filename, privatekey);
+                    if (manifest != null) {
+                        long start = System.nanoTime();
+                        Path target = Paths.get(manifest).toAbsolutePath().normalize();
+                        List<Path> files = new ArrayList<>(BatchSigner.collect(filename));
+                        files.removeIf(now -> now.toAbsolutePath().normalize().equals(target));
+                        Manifest.build(target.getParent(), files, threads).write(Signer.fromKeyFile(privatekey), target);
+                        System.out.printf(Locale.ROOT, "Manifest %s: %d files in %.2f s%n", manifest, files.size(), (System.nanoTime() - start) / 1e9);
+                        break;
+                    }
+                    BatchSigner batch = new BatchSigner(Signer.fromKeyFile(privatekey), threads, maxInFlight, merkle, chunkSize);
+                    System.out.print(batch.signAll(BatchSigner.collect(filename)));
                 }
                 catch (NoSuchFileException e) {
-                    System.out.println("ERROR: file " + filename + " is not exist");
+                    System.out.println("ERROR: file " + e.getFile() + " is not exist");
                 }
-                catch (IndexOutOfBoundsException e) {
-                    System.out.println("Missing arguments. Expected -e <PATH> <PATH>");
+                catch (IOException | IllegalArgumentException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    System.out.println("ERROR: interrupted");
                 }
                 break;
             case "-d":
+                if (missingArguments(args, 3, "-d <PATH> <PATH>")) {
+                    break;
+                }
+                try {
+                    filename = args[1];
+                    publickey = args[2];
+                    Verifier verifier = Verifier.fromKeyFile(publickey);
+                    if (filename.equals(PIPE)) {
+                        VerifyResult result = verifier.verify(System.in, stdout());
+                        System.err.println(result.getMessage());
+                        if (!result.isValid()) {
+                            System.exit(1);
+                        }
+                        break;
+                    }
+                    VerifyCache cache = cacheFile != null && !detached
+                            ? VerifyCache.open(Paths.get(cacheFile), VerifyCache.DEFAULT_MAX_ENTRIES, paranoid)
+                            : null;
+                    VerifyResult result = detached
+                            ? verifier.verifyFileDetached(Paths.get(filename))
+                            : cache != null ? cache.verifyFile(verifier, Paths.get(filename)) : verifier.verifyFile(Paths.get(filename));
+                    if (cache != null) {
+                        cache.save();
+                    }
+                    System.out.println(result.getMessage());
+                    if (result.hasTimestamp()) {
+                        System.out.println("Signed content modified at " + Instant.ofEpochMilli(result.getTimestamp()));
+                    }
+                }
+                catch (NoSuchFileException e) {
+                    System.out.println("ERROR: file " + e.getFile() + " is not exist");
+                }
+                catch (IOException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                }
+                break;
+            case "-r":
+                if (missingArguments(args, 3, "-r <PATH> <PATH>")) {
+                    break;
+                }
+                try {
+                    filename = args[1];
+                    publickey = args[2];
+                    VerifyResult result = Verifier.fromKeyFile(publickey).restoreFile(Paths.get(filename));
+                    System.out.println(result.getMessage());
+                }
+                catch (NoSuchFileException e) {
+                    System.out.println("ERROR: file " + e.getFile() + " is not exist");
+                }
+                catch (IOException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                }
+                break;
+            case "-D":
+                if (missingArguments(args, 3, "-D <DIR|GLOB> <PATH>")) {
+                    break;
+                }
                 try {
                     filename = args[1];
                     publickey = args[2];
-                    SignRSA.checkSign(filename, publickey);
+                    VerifyReport result;
+                    if (manifest != null) {
+                        result = Manifest.open(Verifier.fromKeyFile(publickey), Paths.get(manifest))
+                                         .verifyAll(BatchSigner.selector(filename), threads, failFast);
+                    }
+                    else {
+                        VerifyCache cache = cacheFile != null
+                                ? VerifyCache.open(Paths.get(cacheFile), VerifyCache.DEFAULT_MAX_ENTRIES, paranoid)
+                                : null;
+                        BulkVerifier bulk = new BulkVerifier(Verifier.fromKeyFile(publickey), failFast, cache);
+                        result = bulk.verifyAll(BatchSigner.collect(filename, true));
+                        if (cache != null) {
+                            cache.save();
+                        }
+                    }
+                    if (report == null) {
+                        for(VerifyReport.Entry now : result.getEntries()) {
+                            if (now.getStatus() != VerifyReport.Status.VALID) {
+                                System.out.println("    FAILED " + now.getPath());
+                            }
+                        }
+                    }
+                    else {
+                        System.out.print(report.equals("json") ? result.toJson() : result.toCsv());
+                    }
+                    System.out.println(result.summary());
+                    if (result.getFailed() > 0) {
+                        System.exit(1);
+                    }
+                }
+                catch (NoSuchFileException e) {
+                    System.out.println("ERROR: file " + e.getFile() + " is not exist");
+                }
+                catch (SignRSA.IncorrectSignException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                    System.exit(1);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    System.out.println("ERROR: interrupted");
+                }
+                catch (IOException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                }
+                break;
+            case "-c":
+                if (missingArguments(args, 3, "-c <PATH> <PATH>")) {
+                    break;
+                }
+                try {
+                    filename = args[1];
+                    byte[] fingerprint = SignRSA.convertKey(filename, args[2],
+                            format != null ? KeyFormat.forName(format) : KeyFormat.BINARY);
+                    System.out.println("Key fingerprint: " + SHA256.bytesToHex(fingerprint));
+                }
+                catch (NoSuchFileException e) {
+                    System.out.println("ERROR: file " + e.getFile() + " is not exist");
+                }
+                catch (IOException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                }
+                break;
+            case "-S":
+                if (missingArguments(args, 4, "-S <SOCKET> <PATH|-> <PATH|->")) {
+                    break;
+                }
+                try {
+                    filename = args[1];
+                    privatekey = args[2];
+                    publickey = args[3];
+                    SignDaemon daemon = new SignDaemon(Paths.get(filename),
+                            privatekey.equals(PIPE) ? null : Signer.fromKeyFile(privatekey),
+                            publickey.equals(PIPE) ? null : Verifier.fromKeyFile(publickey),
+                            threads, queueSize);
+                    daemon.start();
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        try {
+                            daemon.close();
+                        }
+                        catch (IOException e) {
+                            System.err.println("ERROR: " + e.getMessage());
+                        }
+                    }));
+                    System.out.println("Listening on " + filename);
+                    daemon.join();
                 }
                 catch (NoSuchFileException e) {
-                    System.out.println("ERROR: file " + filename + " is not exist");
+                    System.out.println("ERROR: file " + e.getFile() + " is not exist");
+                }
+                catch (IOException | IllegalArgumentException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                break;
+            case "-C":
+                if (missingArguments(args, 3, "-C <SOCKET> <COMMAND> [PATH...]")) {
+                    break;
+                }
+                try {
+                    filename = args[1];
+                    SignDaemon.Command command = SignDaemon.Command.forName(args[2]);
+                    List<String> arguments = new ArrayList<>();
+                    if (command == SignDaemon.Command.METRICS) {
+                        arguments.add(args.length > 3 ? args[3] : "");          // Формат метрик
+                    }
+                    else {
+                        for(int i = 3; i < args.length; i++) {                  // Процесс работает в своем каталоге
+                            arguments.add(Paths.get(args[i]).toAbsolutePath().normalize().toString());
+                        }
+                        if (arguments.isEmpty()) {
+                            arguments.add("");
+                        }
+                    }
+                    boolean failed = false;
+                    try (DaemonClient client = DaemonClient.connect(Paths.get(filename))) {
+                        List<SignDaemon.Reply> replies = client.send(command, arguments);
+                        for(int i = 0; i < replies.size(); i++) {
+                            SignDaemon.Reply reply = replies.get(i);
+                            failed |= !reply.isOk();
+                            if (command == SignDaemon.Command.METRICS) {
+                                System.out.print(reply.getMessage());
+                            }
+                            else if (arguments.get(i).isEmpty()) {
+                                System.out.println(reply);
+                            }
+                            else {
+                                System.out.println(args[i + 3] + ": " + reply);
+                            }
+                        }
+                    }
+                    if (failed) {
+                        System.exit(1);
+                    }
+                }
+                catch (IOException | IllegalArgumentException e) {
+                    System.out.println("ERROR: " + e.getMessage());
+                    System.exit(1);
                 }
-                catch (IndexOutOfBoundsException e) {
-                    System.out.println("Missing arguments. Expected -d <PATH> <PATH>");
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
                 break;
             default:
-                System.out.println("Cannot detect flag <-h, -k, -e, -d>");
+                System.out.println("Cannot detect flag <-h, -k, -e, -E, -d, -D, -r, -c, -S, -C>");
                 for(String now : info) {
                     System.out.print(now);
                 }
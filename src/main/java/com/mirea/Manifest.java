@@ -0,0 +1,334 @@
+package com.mirea;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import com.mirea.SignRSA.IncorrectSignException;
+
+/**
+ * Манифест набора файлов: путь, размер и {@code SHA-256} каждого файла под одной подписью.
+ * </p> Вместо операции RSA и перезаписи на каждый файл все файлы хешируются параллельно, а подписывается
+ * один раз текст манифеста: подпись версии 1 дописывается в конец файла манифеста, сами файлы не изменяются.
+ * При проверке подпись манифеста проверяется один раз, затем файлы параллельно хешируются и сверяются
+ * с записями; можно проверить только часть путей.
+ * </p> Пути записываются относительно каталога манифеста через {@code /} и отсортированы, строка записи:
+ * {@code <sha256 hex> <размер> <путь>}. Небольшие файлы (до {@link BatchSigner#SMALL_FILE} байт)
+ * хешируются пачками через {@link DigestProvider#hashAll(byte[][])}, большие - по одному способом {@link ReadMode#current()}.
+ */
+public final class Manifest {
+
+    private static final String HEADER = "ozzmf1";
+    private static final int BATCH_FILES = 64;                              // Файлов в одной задаче пула
+
+    private final Path base;                                                // Каталог, от которого считаются пути
+    private final List<Entry> entries;                                      // Отсортированы по пути
+    private final byte[] fingerprint;                                       // Отпечаток ключа подписи манифеста или null
+
+    /**
+     * Запись об одном файле
+     */
+    public static final class Entry {
+        final String path;
+        final long size;
+        final byte[] digest;
+
+        Entry(String path, long size, byte[] digest) {
+            this.path = path;
+            this.size = size;
+            this.digest = digest;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Получатель результата хеширования одного файла
+     */
+    private interface Sink {
+        void accept(int index, long size, byte[] digest, Exception error);
+    }
+
+    private Manifest(Path base, List<Entry> entries, byte[] fingerprint) {
+        this.base = base;
+        this.entries = entries;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Записи, отсортированные по пути
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Хеширует файлы на пуле потоков и собирает манифест
+     * @param base - каталог манифеста, все файлы должны лежать внутри него
+     * @param files - файлы
+     * @param threads - размер пула потоков
+     * @return Манифест
+     * @throws IOException - если файл не прочитан или лежит вне {@code base}
+     * @throws InterruptedException
+     */
+    public static Manifest build(Path base, List<Path> files, int threads) throws IOException, InterruptedException {
+        Path root = base.toAbsolutePath().normalize();
+        String[] paths = new String[files.size()];
+        for(int i = 0; i < paths.length; i++) {
+            paths[i] = relative(root, files.get(i));
+        }
+
+        Entry[] result = new Entry[paths.length];
+        Exception[] errors = new Exception[1];
+        AtomicBoolean stop = new AtomicBoolean();
+        hashFiles(files, threads, stop, (index, size, digest, error) -> {
+            if (error != null) {
+                synchronized (errors) {
+                    if (errors[0] == null) {
+                        errors[0] = error;
+                    }
+                }
+                stop.set(true);                                             // Манифест без файла не нужен
+                return;
+            }
+            result[index] = new Entry(paths[index], size, digest);
+        });
+        if (errors[0] instanceof IOException) {
+            throw (IOException)errors[0];
+        }
+        if (errors[0] != null) {
+            throw new IOException("File not hashed: " + errors[0], errors[0]);
+        }
+
+        List<Entry> entries = new ArrayList<>(Arrays.asList(result));
+        entries.sort(Comparator.comparing(Entry::getPath));
+        for(int i = 1; i < entries.size(); i++) {
+            if (entries.get(i).path.equals(entries.get(i - 1).path)) {
+                throw new IOException("Duplicate path in manifest: " + entries.get(i).path);
+            }
+        }
+        return new Manifest(root, entries, null);
+    }
+
+    /**
+     * Путь файла относительно каталога манифеста через {@code /}
+     */
+    private static String relative(Path root, Path file) throws IOException {
+        Path path = root.relativize(file.toAbsolutePath().normalize());
+        if (path.getNameCount() == 0 || path.startsWith("..")) {
+            throw new IOException("File " + file + " is outside of manifest directory " + root);
+        }
+        StringBuilder result = new StringBuilder();
+        for(Path name : path) {
+            result.append(result.length() > 0 ? "/" : "").append(name);
+        }
+        String value = result.toString();
+        if (value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+            throw new IOException("Line break in file name: " + file);
+        }
+        return value;
+    }
+
+    /**
+     * Текст манифеста без подписи
+     */
+    byte[] toBytes() {
+        StringBuilder result = new StringBuilder(HEADER).append('\n');
+        HexFormat hex = HexFormat.of();
+        for(Entry now : entries) {
+            result.append(hex.formatHex(now.digest)).append(' ').append(now.size).append(' ').append(now.path).append('\n');
+        }
+        return result.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Подписывает манифест одной операцией RSA и записывает его с подписью в конце
+     * через временный файл и атомарный перенос
+     * @param signer - подписывающий объект
+     * @param file - файл манифеста
+     * @return Путь до файла манифеста
+     * @throws IOException
+     */
+    public Path write(Signer signer, Path file) throws IOException, NoSuchAlgorithmException {
+        byte[] content = toBytes();
+        byte[] sign = signer.sign(content);
+        byte[] data = Arrays.copyOf(content, content.length + sign.length);
+        System.arraycopy(sign, 0, data, content.length, sign.length);
+        return Signer.writeAtomically(file, data);
+    }
+
+    /**
+     * Читает манифест и проверяет его подпись. Файл читается один раз: проверяются и разбираются одни и те же байты.
+     * @param verifier - проверяющий объект
+     * @param file - файл манифеста
+     * @return Манифест с путями относительно каталога файла
+     * @throws IncorrectSignException - если подпись манифеста неверна или текст испорчен
+     * @throws IOException
+     */
+    public static Manifest open(Verifier verifier, Path file) throws IOException, NoSuchAlgorithmException, IncorrectSignException {
+        byte[] data = Files.readAllBytes(file);
+        VerifyResult result = verifier.verify(data);
+        if (!result.isValid()) {
+            throw new IncorrectSignException("Manifest: " + result.getMessage());
+        }
+        if (result.getVersion() != 1) {
+            throw new IncorrectSignException("Manifest: unexpected sign version " + result.getVersion());
+        }
+
+        String text = new String(data, 0, (int)result.getContentSize(), StandardCharsets.UTF_8);
+        String[] lines = text.split("\n", -1);
+        if (lines.length < 2 || !lines[0].equals(HEADER) || !lines[lines.length - 1].isEmpty()) {
+            throw new IncorrectSignException("Manifest: unknown format");
+        }
+        List<Entry> entries = new ArrayList<>(lines.length - 2);
+        HexFormat hex = HexFormat.of();
+        for(int i = 1; i < lines.length - 1; i++) {
+            String[] fields = lines[i].split(" ", 3);
+            try {
+                if (fields.length != 3 || fields[0].length() != 2 * SHA256.DIGEST_SIZE) {
+                    throw new IllegalArgumentException();
+                }
+                entries.add(new Entry(fields[2], Long.parseLong(fields[1]), hex.parseHex(fields[0])));
+            }
+            catch (IllegalArgumentException e) {
+                throw new IncorrectSignException("Manifest: malformed line " + (i + 1));
+            }
+        }
+        return new Manifest(file.toAbsolutePath().normalize().getParent(), entries, result.getFingerprint());
+    }
+
+    /**
+     * Проверяет файлы манифеста, выбранные фильтром, на пуле потоков. Файлы только читаются.
+     * @param filter - какие файлы проверять (по абсолютному пути), {@code path -> true} - все
+     * @param threads - размер пула потоков
+     * @param failFast - остановиться на первой ошибке
+     * @return Отчет по проверенным файлам
+     * @throws InterruptedException
+     */
+    public VerifyReport verifyAll(Predicate<Path> filter, int threads, boolean failFast) throws InterruptedException {
+        List<Entry> selected = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        for(Entry now : entries) {
+            Path path = base.resolve(now.path);
+            if (filter.test(path)) {
+                selected.add(now);
+                files.add(path);
+            }
+        }
+
+        VerifyReport report = new VerifyReport();
+        AtomicBoolean stop = new AtomicBoolean();
+        long start = System.nanoTime();
+        hashFiles(files, threads, stop, (index, size, digest, error) -> {
+            Entry entry = selected.get(index);
+            long nanos = System.nanoTime() - start;                         // Время от начала: файлы пачки хешируются вместе
+            if (error != null) {
+                report.addError(files.get(index), error, nanos);
+            }
+            else if (size != entry.size) {
+                report.add(files.get(index), VerifyResult.invalid("File size mismatch detected"), nanos);
+            }
+            else if (!Arrays.equals(digest, entry.digest)) {
+                report.add(files.get(index), VerifyResult.invalid("Hash sum is not equals"), nanos);
+            }
+            else {
+                Metrics.increment(Metrics.Counter.VERIFIED);
+                report.add(files.get(index), VerifyResult.valid(1, size, SignRSA.NO_TIMESTAMP, fingerprint, digest), nanos);
+                return;
+            }
+            if (failFast) {
+                stop.set(true);
+            }
+        });
+
+        report.setSkipped(files.size() - report.size());
+        report.setNanos(System.nanoTime() - start);
+        return report;
+    }
+
+    /**
+     * Хеширует файлы на пуле потоков пачками по {@link #BATCH_FILES}: в пачке небольшие файлы читаются
+     * в память и хешируются вместе, большие - по одному потоком. Память задачи ограничена размером пачки.
+     * @param files - файлы
+     * @param threads - размер пула потоков
+     * @param stop - флаг остановки: оставшиеся файлы пропускаются
+     * @param sink - получает размер и хеш-сумму или ошибку по каждому обработанному файлу
+     * @throws InterruptedException
+     */
+    private static void hashFiles(List<Path> files, int threads, AtomicBoolean stop, Sink sink) throws InterruptedException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Threads should be positive");
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for(int from = 0; from < files.size(); from += BATCH_FILES) {
+                int first = from;
+                int last = Math.min(files.size(), from + BATCH_FILES);
+                pool.execute(() -> hashBatch(files, first, last, stop, sink));
+            }
+        }
+        finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static void hashBatch(List<Path> files, int first, int last, AtomicBoolean stop, Sink sink) {
+        List<Integer> small = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        for(int i = first; i < last && !stop.get(); i++) {
+            Path path = files.get(i);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < BatchSigner.SMALL_FILE) {
+                    small.add(i);
+                    contents.add(BatchSigner.readContent(channel, size));     // Размер и байты из одного открытого файла
+                    continue;
+                }
+                Hasher hasher = DigestProvider.current().newHasher();
+                ReadMode.current().hash(channel, 0, size, hasher);
+                sink.accept(i, size, hasher.digest(), null);
+            }
+            catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+                sink.accept(i, -1, null, e);
+            }
+        }
+        if (small.isEmpty()) {
+            return;
+        }
+
+        byte[][] hashes;
+        try {
+            hashes = DigestProvider.current().hashAll(contents.toArray(new byte[0][]));
+        }
+        catch (NoSuchAlgorithmException | RuntimeException e) {
+            for(int now : small) {
+                sink.accept(now, -1, null, e);
+            }
+            return;
+        }
+        for(int i = 0; i < hashes.length; i++) {
+            sink.accept(small.get(i), contents.get(i).length, hashes[i], null);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.mirea;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Хеш-дерево Меркла над содержимым файла для подписи версии 2.
+ * </p> Содержимое делится на куски по {@code chunkSize} байт, куски хешируются параллельно в {@link ForkJoinPool}
+ * и читаются способом {@link ReadMode#current()}.
+ * </p> Лист: {@code SHA-256(0x00 || кусок)}. Узел: {@code SHA-256(0x01 || левый || правый)}.
+ * Если в диапазоне один кусок, узлом является сам лист.
+ */
+public class MerkleHash {
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;          // Размер куска по умолчанию
+    public static final int MIN_CHUNK_SIZE = 64 * 1024;                     // Меньшие куски дают задачу на каждые несколько байт
+    public static final long MAX_CHUNKS = 1L << 20;                         // Листьев в дереве не больше
+
+    private static final byte LEAF = 0x00;
+    private static final byte NODE = 0x01;
+
+    /**
+     * Источник содержимого для листьев. Вызывается из нескольких потоков сразу.
+     */
+    private interface Source {
+        void hash(long position, long length, Hasher hasher) throws IOException;
+    }
+
+    /**
+     * Возвращает корень дерева для первых {@code sizeOfFile} байт {@code file}
+     * @param file - дескриптор файла
+     * @param sizeOfFile - количество байт содержимого
+     * @param chunkSize - размер куска
+     * @return Корень дерева
+     * @throws IOException
+     */
+    public static byte[] getFileRoot(File file, long sizeOfFile, long chunkSize) throws IOException, NoSuchAlgorithmException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return getRoot(channel, sizeOfFile, chunkSize);
+        }
+    }
+
+    /**
+     * Возвращает корень дерева для первых {@code sizeOfFile} байт открытого канала.
+     * Куски читаются позиционно, поэтому канал общий для всех задач.
+     * @param channel - открытый канал файла
+     * @param sizeOfFile - количество байт содержимого
+     * @param chunkSize - размер куска
+     * @return Корень дерева
+     * @throws IOException
+     */
+    public static byte[] getRoot(FileChannel channel, long sizeOfFile, long chunkSize) throws IOException, NoSuchAlgorithmException {
+        ReadMode mode = ReadMode.current().useMapping(sizeOfFile) ? ReadMode.MMAP : ReadMode.STREAM;
+        return getRoot((position, length, hasher) -> mode.hash(channel, position, length, hasher), sizeOfFile, chunkSize);
+    }
+
+    /**
+     * Возвращает корень дерева для оставшихся байт буфера {@code content}. Позиция буфера не меняется.
+     * @param content - содержимое
+     * @param chunkSize - размер куска
+     * @return Корень дерева
+     */
+    public static byte[] getRoot(ByteBuffer content, long chunkSize) throws NoSuchAlgorithmException {
+        ByteBuffer source = content.slice();
+        try {
+            return getRoot((position, length, hasher) ->
+                    hasher.update(source.duplicate().position((int)position).limit((int)(position + length))),
+                    source.remaining(), chunkSize);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);                              // Буфер в памяти не бросает IOException
+        }
+    }
+
+    /**
+     * Проверяет, что дерево над {@code sizeOfFile} байт с кусками по {@code chunkSize} не слишком мелкое:
+     * кусок не меньше {@link #MIN_CHUNK_SIZE}, листьев не больше {@link #MAX_CHUNKS}.
+     * Размер куска в подписи задает файл, поэтому без проверки он позволяет завалить проверяющего задачами.
+     * @param sizeOfFile - количество байт содержимого
+     * @param chunkSize - размер куска
+     * @throws IllegalArgumentException - если размер куска вне допустимого диапазона
+     */
+    public static void checkChunkSize(long sizeOfFile, long chunkSize) {
+        if (chunkSize < MIN_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size should be at least " + MIN_CHUNK_SIZE);
+        }
+        if ((sizeOfFile + chunkSize - 1) / chunkSize > MAX_CHUNKS) {
+            throw new IllegalArgumentException("Chunk size " + chunkSize + " gives more than " + MAX_CHUNKS + " chunks");
+        }
+    }
+
+    private static byte[] getRoot(Source source, long sizeOfFile, long chunkSize) throws IOException, NoSuchAlgorithmException {
+        checkChunkSize(sizeOfFile, chunkSize);
+        DigestProvider provider = DigestProvider.current();
+        provider.newHasher();                                               // Проверяем алгоритм до запуска задач
+
+        long chunks = Math.max(1, (sizeOfFile + chunkSize - 1) / chunkSize);
+        try {
+            return ForkJoinPool.commonPool().invoke(new Node(source, provider, sizeOfFile, chunkSize, 0, chunks));
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Хеш поддерева над кусками {@code [from, to)}
+     */
+    private static class Node extends RecursiveTask<byte[]> {
+        private final Source source;
+        private final DigestProvider provider;
+        private final long sizeOfFile;
+        private final long chunkSize;
+        private final long from;
+        private final long to;
+
+        Node(Source source, DigestProvider provider, long sizeOfFile, long chunkSize, long from, long to) {
+            this.source = source;
+            this.provider = provider;
+            this.sizeOfFile = sizeOfFile;
+            this.chunkSize = chunkSize;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected byte[] compute() {
+            try {
+                if (to - from == 1) {
+                    return leaf(from);
+                }
+
+                long middle = from + Long.highestOneBit(to - from - 1);     // Левое поддерево - полное
+                Node left = new Node(source, provider, sizeOfFile, chunkSize, from, middle);
+                Node right = new Node(source, provider, sizeOfFile, chunkSize, middle, to);
+                left.fork();
+                byte[] r = right.compute();
+                byte[] l = left.join();
+
+                Hasher hasher = provider.newHasher();
+                hasher.update(new byte[] { NODE });
+                hasher.update(l);
+                hasher.update(r);
+                return hasher.digest();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Хеш одного куска
+         */
+        private byte[] leaf(long index) throws IOException, NoSuchAlgorithmException {
+            Hasher hasher = provider.newHasher();
+            hasher.update(new byte[] { LEAF });
+
+            long position = index * chunkSize;
+            long end = Math.min(sizeOfFile, position + chunkSize);
+            source.hash(position, end - position, hasher);
+            return hasher.digest();
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.mirea;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Метрики горячего пути: время по фазам, байты и счетчики операций.
+ * </p> Фаза замеряется парой {@link #start()} / {@link #stop(Phase, long, long)}. Пока метрики выключены
+ * и запись JFR не идет, {@link #start()} возвращает {@link #OFF} без вызова {@code System.nanoTime()},
+ * а {@link #stop} сразу выходит: цена выключенных метрик - одно чтение volatile-поля.
+ * </p> Время каждой фазы раскладывается в гистограмму с границами-степенями двойки от 1 мкс до ~68 с,
+ * все счетчики - {@link LongAdder}, поэтому запись из многих потоков не упирается в одну ячейку.
+ * </p> При записи JFR на каждую фазу пишется событие {@code com.mirea.Phase}. Классы событий загружаются,
+ * только если JFR запущен вместе с JVM ({@code -XX:StartFlightRecording}) или задано {@code -Dsign.jfr=true}
+ * (для записи, которую начнут позже через {@code jcmd}): регистрация события стоит около 100 мс на старте.
+ * </p> Включается флагом {@code --metrics <prometheus|json>} или свойством {@code -Dsign.metrics=true}.
+ */
+public final class Metrics {
+
+    public static final String PROPERTY = "sign.metrics";                  // Системное свойство для включения
+    public static final String JFR_PROPERTY = "sign.jfr";                  // Системное свойство для событий JFR
+    public static final long OFF = Long.MIN_VALUE;                          // Начало фазы, когда замер не нужен
+
+    private static final int MIN_SHIFT = 10;                                // Первая граница - 2^10 нс (~1 мкс)
+    private static final int BUCKETS = 27;                                  // Последняя граница - 2^36 нс (~68 с)
+
+    private static volatile boolean enabled = Boolean.getBoolean(PROPERTY);
+    private static final boolean JFR = Boolean.getBoolean(JFR_PROPERTY) || FlightRecorder.isInitialized();
+
+    /**
+     * Фазы подписи и проверки
+     */
+    public enum Phase {
+        KEY_LOAD("key_load"),               // Чтение и разбор файла ключа
+        READ("read"),                       // Чтение содержимого и подписи из файла
+        HASH("hash"),                       // SHA-256 (для mmap включает подкачку страниц)
+        RSA_SIGN("rsa_sign"),               // Возведение в степень закрытым ключом
+        RSA_VERIFY("rsa_verify"),           // Возведение в степень открытым ключом
+        WRITE("write");                     // Запись подписи
+
+        private final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];   // Последняя - больше всех границ
+
+        Phase(String name) {
+            this.name = name;
+            for(int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Счетчики операций
+     */
+    public enum Counter {
+        SIGNED("signed"),                   // Созданные подписи
+        VERIFIED("verified"),               // Успешные проверки
+        REJECTED("rejected"),               // Неуспешные проверки
+        CACHE_HITS("cache_hits");           // Файлы, принятые по кэшу проверки
+
+        private final String name;
+        private final LongAdder value = new LongAdder();
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Событие JFR на одну фазу
+     */
+    @Name("com.mirea.Phase")
+    @Label("Sign Phase")
+    @Category({ "Sign" })
+    @Description("One phase of signing or verification")
+    @StackTrace(false)
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Bytes")
+        long bytes;
+
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+    }
+
+    /**
+     * Тип события; класс загружается только при {@link #JFR}
+     */
+    private static final class Jfr {
+        static final EventType TYPE = EventType.getEventType(PhaseEvent.class);
+
+        static void emit(Phase phase, long bytes, long nanos) {
+            PhaseEvent event = new PhaseEvent();
+            if (event.shouldCommit()) {
+                event.phase = phase.name;
+                event.bytes = bytes;
+                event.nanos = nanos;
+                event.commit();
+            }
+        }
+    }
+
+    private Metrics() {}
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    /**
+     * Начало фазы
+     * @return Время в наносекундах или {@link #OFF}, если замерять не нужно
+     */
+    public static long start() {
+        return enabled || (JFR && Jfr.TYPE.isEnabled()) ? System.nanoTime() : OFF;
+    }
+
+    /**
+     * Конец фазы без учета байт
+     * @param phase - фаза
+     * @param start - значение {@link #start()}
+     */
+    public static void stop(Phase phase, long start) {
+        stop(phase, start, 0);
+    }
+
+    /**
+     * Конец фазы
+     * @param phase - фаза
+     * @param start - значение {@link #start()}
+     * @param bytes - обработано байт
+     */
+    public static void stop(Phase phase, long start, long bytes) {
+        if (start == OFF) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        if (enabled) {
+            phase.count.increment();
+            phase.nanos.add(nanos);
+            phase.bytes.add(bytes);
+            phase.max.accumulate(nanos);
+            phase.buckets[bucket(nanos)].increment();
+        }
+        if (JFR) {
+            Jfr.emit(phase, bytes, nanos);
+        }
+    }
+
+    /**
+     * Увеличивает счетчик, если метрики включены
+     */
+    public static void increment(Counter counter) {
+        if (enabled) {
+            counter.value.increment();
+        }
+    }
+
+    /**
+     * Номер корзины: первая граница {@code 2^(MIN_SHIFT + i)} не меньше {@code nanos}
+     */
+    private static int bucket(long nanos) {
+        int bits = 64 - Long.numberOfLeadingZeros(Math.max(nanos - 1, 0));  // ceil(log2(nanos))
+        return Math.min(Math.max(bits - MIN_SHIFT, 0), BUCKETS);
+    }
+
+    private static double bound(int bucket) {
+        return (double)(1L << (MIN_SHIFT + bucket)) / 1e9;
+    }
+
+    /**
+     * Обнуляет все метрики
+     */
+    public static void reset() {
+        for(Phase phase : Phase.values()) {
+            phase.count.reset();
+            phase.nanos.reset();
+            phase.bytes.reset();
+            phase.max.reset();
+            for(LongAdder now : phase.buckets) {
+                now.reset();
+            }
+        }
+        for(Counter counter : Counter.values()) {
+            counter.value.reset();
+        }
+    }
+
+    /**
+     * Метрики в текстовом формате Prometheus
+     */
+    public static String toPrometheus() {
+        StringBuilder result = new StringBuilder();
+        result.append("# HELP sign_phase_seconds Time spent in a phase of signing or verification.\n");
+        result.append("# TYPE sign_phase_seconds histogram\n");
+        for(Phase phase : Phase.values()) {
+            long cumulative = 0;
+            for(int i = 0; i < BUCKETS; i++) {
+                cumulative += phase.buckets[i].sum();
+                result.append(String.format(Locale.ROOT, "sign_phase_seconds_bucket{phase=\"%s\",le=\"%s\"} %d%n",
+                        phase.name, bound(i), cumulative));
+            }
+            long count = phase.count.sum();
+            result.append(String.format(Locale.ROOT, "sign_phase_seconds_bucket{phase=\"%s\",le=\"+Inf\"} %d%n", phase.name, count));
+            result.append(String.format(Locale.ROOT, "sign_phase_seconds_sum{phase=\"%s\"} %.9f%n", phase.name, phase.nanos.sum() / 1e9));
+            result.append(String.format(Locale.ROOT, "sign_phase_seconds_count{phase=\"%s\"} %d%n", phase.name, count));
+        }
+        result.append("# HELP sign_phase_bytes_total Bytes processed in a phase.\n");
+        result.append("# TYPE sign_phase_bytes_total counter\n");
+        for(Phase phase : Phase.values()) {
+            result.append(String.format(Locale.ROOT, "sign_phase_bytes_total{phase=\"%s\"} %d%n", phase.name, phase.bytes.sum()));
+        }
+        result.append("# HELP sign_operations_total Completed operations.\n");
+        result.append("# TYPE sign_operations_total counter\n");
+        for(Counter counter : Counter.values()) {
+            result.append(String.format(Locale.ROOT, "sign_operations_total{operation=\"%s\"} %d%n", counter.name, counter.value.sum()));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Метрики в JSON: по фазам количество, суммарное и наибольшее время, байты и квантили
+     * (верхние границы корзин), затем счетчики
+     */
+    public static String toJson() {
+        StringBuilder result = new StringBuilder("{\n  \"phases\": {");
+        Phase[] phases = Phase.values();
+        for(int i = 0; i < phases.length; i++) {
+            Phase phase = phases[i];
+            result.append(i == 0 ? "\n" : ",\n");
+            result.append(String.format(Locale.ROOT,
+                    "    \"%s\": {\"count\": %d, \"totalNanos\": %d, \"maxNanos\": %d, \"bytes\": %d, \"p50Seconds\": %s, \"p99Seconds\": %s}",
+                    phase.name, phase.count.sum(), phase.nanos.sum(), phase.max.get(), phase.bytes.sum(),
+                    quantile(phase, 0.5), quantile(phase, 0.99)));
+        }
+        result.append("\n  },\n  \"counters\": {");
+        Counter[] counters = Counter.values();
+        for(int i = 0; i < counters.length; i++) {
+            result.append(i == 0 ? "\n" : ",\n");
+            result.append(String.format(Locale.ROOT, "    \"%s\": %d", counters[i].name, counters[i].value.sum()));
+        }
+        return result.append("\n  }\n}\n").toString();
+    }
+
+    /**
+     * Верхняя граница корзины, в которую попадает квантиль {@code q}, в секундах; {@code null}, если замеров нет
+     */
+    private static String quantile(Phase phase, double q) {
+        long count = phase.count.sum();
+        if (count == 0) {
+            return "null";
+        }
+        long rank = (long)Math.ceil(q * count);
+        long cumulative = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            cumulative += phase.buckets[i].sum();
+            if (cumulative >= rank) {
+                return String.format(Locale.ROOT, "%s", bound(i));
+            }
+        }
+        return String.format(Locale.ROOT, "%.9f", phase.max.get() / 1e9);
+    }
+
+    /**
+     * Метрики в формате {@code prometheus} или {@code json}
+     * @throws IllegalArgumentException - если формат неизвестен
+     */
+    public static String export(String format) {
+        switch (format) {
+            case "prometheus":
+                return toPrometheus();
+            case "json":
+                return toJson();
+            default:
+                throw new IllegalArgumentException("Unknown metrics format: " + format);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.mirea;
+
+import java.math.BigInteger;
+
+/**
+ * Возведение в степень по модулю для одной пары (модуль, экспонента) методом Монтгомери.
+ * </p> Все, что зависит только от ключа, считается один раз в конструкторе: слова модуля,
+ * {@code -N^-1 mod 2^64}, {@code R mod N}, {@code R^2 mod N}, слова экспоненты и размер окна.
+ * </p> Числа хранятся в {@code long[]} по 64 бита, младшее слово первое. Рабочие массивы
+ * (таблица окна, аккумулятор, промежуточное произведение) свои у каждого потока и переиспользуются,
+ * поэтому объект можно делить между потоками, а само возведение в степень ничего не выделяет.
+ * </p> На x86_64 и aarch64 {@code BigInteger.modPow} в HotSpot работает через ассемблерные интринсики
+ * умножения Монтгомери и оказывается быстрее, поэтому по умолчанию движок включается только на других
+ * архитектурах. Выбор задается свойством {@code -Dsign.modexp=<auto|montgomery|biginteger>}.
+ */
+public final class ModExpEngine {
+
+    public static final String PROPERTY = "sign.modexp";                   // Системное свойство для выбора реализации
+
+    private static final boolean ENABLED = detectEnabled();
+
+    private final BigInteger modulus;
+    private final int n;                    // Количество 64-битных слов модуля
+    private final int byteLength;           // Длина результата в байтах
+    private final long[] N;                 // Модуль
+    private final long n0inv;               // -N^-1 mod 2^64
+    private final long[] one;               // R mod N (единица в форме Монтгомери)
+    private final long[] r2;                // R^2 mod N
+    private final long[] exp;               // Экспонента
+    private final int expBits;              // Длина экспоненты в битах
+    private final int window;               // Размер скользящего окна
+
+    private final ThreadLocal<Scratch> scratch;
+
+    /**
+     * Рабочие массивы одного потока
+     */
+    private static final class Scratch {
+        final long[] base;                  // Основание в форме Монтгомери
+        final long[] acc;                   // Аккумулятор
+        final long[] t;                     // Промежуточное произведение (n + 2 слова)
+        final long[] unit;                  // Обычная единица для выхода из формы Монтгомери
+        final long[][] table;               // Нечетные степени основания: base^1, base^3, ...
+
+        Scratch(int n, int window) {
+            base = new long[n];
+            acc = new long[n];
+            t = new long[n + 2];
+            unit = new long[n];
+            unit[0] = 1;
+            table = new long[1 << (window - 1)][n];
+        }
+    }
+
+    /**
+     * @param modulus - нечетный модуль
+     * @param exponent - неотрицательная экспонента
+     */
+    public ModExpEngine(BigInteger modulus, BigInteger exponent) {
+        if (modulus.signum() <= 0 || !modulus.testBit(0)) {
+            throw new IllegalArgumentException("Modulus should be positive and odd");
+        }
+        if (exponent.signum() < 0) {
+            throw new IllegalArgumentException("Exponent should not be negative");
+        }
+
+        this.modulus = modulus;
+        this.n = (modulus.bitLength() + 63) / 64;
+        this.byteLength = (modulus.bitLength() + 7) / 8;
+        this.N = toLimbs(modulus, n);
+        this.one = toLimbs(BigInteger.ONE.shiftLeft(64 * n).mod(modulus), n);
+        this.r2 = toLimbs(BigInteger.ONE.shiftLeft(128 * n).mod(modulus), n);
+        this.expBits = exponent.bitLength();
+        this.exp = toLimbs(exponent, Math.max(1, (expBits + 63) / 64));
+        this.window = expBits > 512 ? 5 : expBits > 128 ? 4 : expBits > 32 ? 3 : 1;
+
+        long x = 1;                                                         // Обратный по Ньютону: каждый шаг удваивает число верных бит
+        for(int i = 0; i < 7; i++) {
+            x *= 2 - N[0] * x;
+        }
+        this.n0inv = -x;
+
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(n, window));
+    }
+
+    private static boolean detectEnabled() {
+        String mode = System.getProperty(PROPERTY, "auto");
+        switch (mode) {
+            case "montgomery":
+                return true;
+            case "biginteger":
+                return false;
+            default:
+                String arch = System.getProperty("os.arch", "");
+                return !(arch.equals("amd64") || arch.equals("x86_64") || arch.equals("aarch64"));
+        }
+    }
+
+    /**
+     * Нужно ли пользоваться движком вместо {@code BigInteger.modPow}
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public BigInteger getModulus() {
+        return modulus;
+    }
+
+    /**
+     * Длина результата {@link #modPow(byte[], int, int)} в байтах
+     */
+    public int getByteLength() {
+        return byteLength;
+    }
+
+    /**
+     * Возводит в степень число {@code base}
+     * @param base - основание
+     * @return {@code base^exponent mod modulus}
+     */
+    public BigInteger modPow(BigInteger base) {
+        byte[] bytes = base.signum() < 0 || base.compareTo(modulus) >= 0
+                ? base.mod(modulus).toByteArray()
+                : base.toByteArray();
+        return new BigInteger(1, modPow(bytes, 0, bytes.length));
+    }
+
+    /**
+     * Возводит в степень число, записанное в {@code source} (big-endian, без знака)
+     * @param source - массив байт
+     * @param offset - смещение
+     * @param length - длина числа
+     * @return Результат ровно из {@link #getByteLength()} байт (big-endian, с ведущими нулями)
+     */
+    public byte[] modPow(byte[] source, int offset, int length) {
+        Scratch s = scratch.get();
+
+        while (length > 0 && source[offset] == 0) {                         // Ведущие нули
+            offset++;
+            length--;
+        }
+        if (length > byteLength || (length == byteLength && !fromBytes(source, offset, length, s.base))) {
+            BigInteger reduced = new BigInteger(1, source, offset, length).mod(modulus);   // Основание больше модуля - редкий случай
+            byte[] bytes = reduced.toByteArray();
+            return modPow(bytes, 0, bytes.length);
+        }
+        fromBytes(source, offset, length, s.base);
+
+        montMul(s.base, r2, s.base, s.t);                                   // В форму Монтгомери
+        long[] result = expBits == 0 ? one : power(s);
+        montMul(result, s.unit, s.acc, s.t);                                // Из формы Монтгомери
+
+        byte[] out = new byte[byteLength];
+        for(int i = 0; i < byteLength; i++) {
+            out[byteLength - 1 - i] = (byte)(s.acc[i >>> 3] >>> (8 * (i & 7)));
+        }
+        return out;
+    }
+
+    /**
+     * Скользящее окно слева направо по битам экспоненты
+     * @param s - рабочие массивы, в {@code s.base} основание в форме Монтгомери
+     * @return {@code s.acc} с результатом в форме Монтгомери
+     */
+    private long[] power(Scratch s) {
+        long[][] table = s.table;
+        System.arraycopy(s.base, 0, table[0], 0, n);
+        if (table.length > 1) {
+            montMul(s.base, s.base, s.acc, s.t);                            // base^2
+            for(int i = 1; i < table.length; i++) {
+                montMul(table[i - 1], s.acc, table[i], s.t);
+            }
+        }
+
+        long[] acc = s.acc;
+        System.arraycopy(one, 0, acc, 0, n);
+        int i = expBits - 1;
+        while (i >= 0) {
+            if (!bit(i)) {
+                montMul(acc, acc, acc, s.t);
+                i--;
+                continue;
+            }
+            int low = Math.max(i - window + 1, 0);
+            while (!bit(low)) {
+                low++;
+            }
+            int value = 0;
+            for(int j = i; j >= low; j--) {
+                montMul(acc, acc, acc, s.t);
+                value = (value << 1) | (bit(j) ? 1 : 0);
+            }
+            montMul(acc, table[value >>> 1], acc, s.t);
+            i = low - 1;
+        }
+        return acc;
+    }
+
+    private boolean bit(int index) {
+        return (exp[index >>> 6] >>> (index & 63) & 1) != 0;
+    }
+
+    /**
+     * Умножение Монтгомери {@code out = a * b * R^-1 mod N} (CIOS).
+     * {@code out} может совпадать с {@code a} или {@code b}.
+     * @param a - множитель меньше N
+     * @param b - множитель меньше N
+     * @param out - результат
+     * @param t - рабочий массив из n + 2 слов
+     */
+    private void montMul(long[] a, long[] b, long[] out, long[] t) {
+        int n = this.n;
+        long[] N = this.N;
+        for(int i = 0; i <= n + 1; i++) {
+            t[i] = 0;
+        }
+
+        for(int i = 0; i < n; i++) {
+            long bi = b[i];
+            long carry = 0;
+            for(int j = 0; j < n; j++) {                                    // t += a * b[i]
+                long x = a[j];
+                long lo = x * bi;
+                long hi = multiplyHighUnsigned(x, bi);
+                long sum = t[j] + lo;
+                hi += lessUnsigned(sum, lo);
+                long sum2 = sum + carry;
+                hi += lessUnsigned(sum2, sum);
+                t[j] = sum2;
+                carry = hi;
+            }
+            long sum = t[n] + carry;
+            t[n + 1] = lessUnsigned(sum, carry);
+            t[n] = sum;
+
+            long m = t[0] * n0inv;                                          // t += m * N, затем сдвиг на одно слово
+            long lo = m * N[0];
+            carry = multiplyHighUnsigned(m, N[0]) + lessUnsigned(t[0] + lo, lo);
+            for(int j = 1; j < n; j++) {
+                long x = N[j];
+                lo = m * x;
+                long hi = multiplyHighUnsigned(m, x);
+                sum = t[j] + lo;
+                hi += lessUnsigned(sum, lo);
+                long sum2 = sum + carry;
+                hi += lessUnsigned(sum2, sum);
+                t[j - 1] = sum2;
+                carry = hi;
+            }
+            sum = t[n] + carry;
+            t[n - 1] = sum;
+            t[n] = t[n + 1] + lessUnsigned(sum, carry);
+        }
+
+        if (t[n] != 0 || !lessThanModulus(t)) {                             // Финальное вычитание
+            long borrow = 0;
+            for(int j = 0; j < n; j++) {
+                long x = t[j];
+                long d = x - N[j] - borrow;
+                borrow = (lessUnsigned(x, N[j]) | ((x == N[j]) ? borrow : 0));
+                out[j] = d;
+            }
+        }
+        else {
+            System.arraycopy(t, 0, out, 0, n);
+        }
+    }
+
+    private boolean lessThanModulus(long[] t) {
+        for(int j = n - 1; j >= 0; j--) {
+            if (t[j] != N[j]) {
+                return lessUnsigned(t[j], N[j]) == 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Читает big-endian число в слова {@code limbs}
+     * @return {@code true}, если число меньше модуля
+     */
+    private boolean fromBytes(byte[] source, int offset, int length, long[] limbs) {
+        for(int j = 0; j < n; j++) {
+            limbs[j] = 0;
+        }
+        for(int i = 0; i < length; i++) {
+            int k = length - 1 - i;                                         // Номер байта от младшего
+            limbs[k >>> 3] |= (source[offset + i] & 0xFFL) << (8 * (k & 7));
+        }
+        return lessThanModulus(limbs);
+    }
+
+    private static long[] toLimbs(BigInteger value, int count) {
+        long[] result = new long[count];
+        for(int j = 0; j < count; j++) {
+            result[j] = value.shiftRight(64 * j).longValue();
+        }
+        return result;
+    }
+
+    private static long lessUnsigned(long a, long b) {
+        return (a ^ Long.MIN_VALUE) < (b ^ Long.MIN_VALUE) ? 1 : 0;
+    }
+
+    private static long multiplyHighUnsigned(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+    }
+}
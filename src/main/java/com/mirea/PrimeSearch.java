@@ -0,0 +1,132 @@
+package com.mirea;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Поиск случайных простых чисел для ключей RSA.
+ * </p> От случайной нечетной точки перебираются кандидаты с шагом 2. Перед проверкой Миллера-Рабина
+ * кандидаты отсеиваются решетом по малым простым: остатки от деления начала окна на каждое малое простое
+ * считаются один раз, дальше решето сдвигается на следующее окно без деления больших чисел.
+ * Так до дорогой проверки доходит примерно каждый двадцатый кандидат.
+ */
+public final class PrimeSearch {
+
+    private static final int SMALL_PRIMES_LIMIT = 1 << 14;                  // Малые простые для решета - до 16384
+    private static final int WINDOW = 4096;                                 // Кандидатов в одном окне решета
+    private static final int CERTAINTY = 100;                               // Вероятность ошибки не больше 2^-100
+
+    private static final int[] SMALL_PRIMES = smallPrimes(SMALL_PRIMES_LIMIT);
+
+    private PrimeSearch() {}
+
+    private static int[] smallPrimes(int limit) {
+        boolean[] composite = new boolean[limit];
+        int count = 0;
+        for(int i = 3; i < limit; i += 2) {                                 // 2 не нужна: кандидаты нечетные
+            if (!composite[i]) {
+                count++;
+                for(long j = (long)i * i; j < limit; j += 2 * i) {
+                    composite[(int)j] = true;
+                }
+            }
+        }
+        int[] result = new int[count];
+        for(int i = 3, k = 0; i < limit; i += 2) {
+            if (!composite[i]) {
+                result[k++] = i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Возвращает случайное простое число ровно из {@code bitLength} бит с двумя старшими единичными битами,
+     * поэтому произведение двух таких чисел имеет ровно {@code 2 * bitLength} бит
+     * @param bitLength - размер числа в битах (не меньше 16)
+     * @param random - источник случайности
+     * @return Простое число
+     */
+    public static BigInteger randomPrime(int bitLength, Random random) {
+        return randomPrime(bitLength, null, random);
+    }
+
+    /**
+     * Возвращает случайное простое число {@code p}, как {@link #randomPrime(int, Random)},
+     * для которого {@code p - 1} взаимно просто с простой открытой экспонентой {@code e}
+     * @param bitLength - размер числа в битах (не меньше 16)
+     * @param e - простая открытая экспонента или {@code null}
+     * @param random - источник случайности
+     * @return Простое число
+     */
+    public static BigInteger randomPrime(int bitLength, BigInteger e, Random random) {
+        if (bitLength < 16) {
+            throw new IllegalArgumentException("Bit length should be at least 16");
+        }
+        int exponent = e != null && e.bitLength() < 31 ? e.intValue() : 0;  // Большие e проверяются отдельно
+
+        while (true) {
+            BigInteger start = new BigInteger(bitLength, random)
+                    .setBit(bitLength - 1).setBit(bitLength - 2).setBit(0);
+            int[] residues = new int[SMALL_PRIMES.length];                  // start mod малое простое
+            for(int i = 0; i < residues.length; i++) {
+                residues[i] = start.mod(BigInteger.valueOf(SMALL_PRIMES[i])).intValue();
+            }
+            int residueE = exponent > 0 ? start.mod(BigInteger.valueOf(exponent)).intValue() : 0;
+
+            boolean[] composite = new boolean[WINDOW];
+            for(long base = 0; ; base += 2L * WINDOW) {
+                BigInteger from = start.add(BigInteger.valueOf(base));
+                if (from.bitLength() > bitLength) {
+                    break;                                                  // Вышли за размер - новая точка
+                }
+                sieve(composite, residues, base, exponent, residueE);
+
+                for(int k = 0; k < WINDOW; k++) {
+                    if (composite[k]) {
+                        continue;
+                    }
+                    BigInteger candidate = from.add(BigInteger.valueOf(2L * k));
+                    if (candidate.bitLength() > bitLength) {
+                        break;
+                    }
+                    if (e != null && exponent == 0 && !candidate.subtract(BigInteger.ONE).gcd(e).equals(BigInteger.ONE)) {
+                        continue;
+                    }
+                    if (candidate.isProbablePrime(CERTAINTY)) {
+                        return candidate;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Отмечает в окне кандидатов {@code start + base + 2k}, делящихся на малые простые,
+     * а также тех, у кого {@code candidate - 1} делится на {@code exponent}
+     */
+    private static void sieve(boolean[] composite, int[] residues, long base, int exponent, int residueE) {
+        Arrays.fill(composite, false);
+        for(int i = 0; i < SMALL_PRIMES.length; i++) {
+            int prime = SMALL_PRIMES[i];
+            int r = (int)((residues[i] + base) % prime);                    // (start + base) mod prime
+            markMultiples(composite, prime, r, 0);
+        }
+        if (exponent > 0) {
+            int r = (int)((residueE + base) % exponent);
+            markMultiples(composite, exponent, r, 1);                       // candidate = 1 mod e
+        }
+    }
+
+    /**
+     * Отмечает {@code k}, для которых {@code r + 2k = target (mod prime)}
+     */
+    private static void markMultiples(boolean[] composite, int prime, int r, int target) {
+        int need = Math.floorMod(target - r, prime);                        // Нужно 2k = need (mod prime)
+        int k = (need & 1) == 0 ? need / 2 : (need + prime) / 2;           // prime нечетное
+        for(; k < composite.length; k += prime) {
+            composite[k] = true;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.mirea;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Способ чтения содержимого файла при хешировании.
+ * </p> {@link #STREAM} - поток через буфер фиксированного размера.
+ * </p> {@link #MMAP} - {@link MappedByteBuffer} окнами по {@link #WINDOW_SIZE}, хеш считается прямо из отображенной памяти.
+ * </p> {@link #PIPELINE} - отдельный поток читает в кольцо direct-буферов, пока хешируются уже прочитанные
+ * ({@link ReadPipeline}); чтение и хеширование перекрываются, это помогает на медленных и сетевых дисках.
+ * </p> {@link #AUTO} - {@code PIPELINE} для файлов от {@code -Dsign.io.threshold} байт (по умолчанию 16 МиБ), иначе {@code STREAM}.
+ * Куски дерева Меркла и так хешируются параллельно, для них {@code AUTO} на больших файлах отображает их в память.
+ * </p> Выбор задается флагом {@code --io <name>} или свойством {@code -Dsign.io=<name>}.
+ */
+public enum ReadMode {
+
+    STREAM("stream"),
+    MMAP("mmap"),
+    PIPELINE("pipeline"),
+    AUTO("auto");
+
+    public static final String PROPERTY = "sign.io";                       // Системное свойство для выбора режима
+    public static final long WINDOW_SIZE = 64L * 1024 * 1024;               // Размер окна отображения
+    private static final int BUFFER_SIZE = 64 * 1024;                       // Размер буфера для чтения потоком
+
+    private static final long THRESHOLD = Long.getLong("sign.io.threshold", 16L * 1024 * 1024);
+    private static volatile ReadMode current = AUTO;
+
+    private final String name;
+
+    ReadMode(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Нужно ли отображать в память файл размером {@code size}
+     * @param size - размер читаемой области
+     * @return {@code true} для чтения через {@link MappedByteBuffer}
+     */
+    public boolean useMapping(long size) {
+        return this == MMAP || (this == AUTO && size >= THRESHOLD);
+    }
+
+    /**
+     * Нужно ли читать область размером {@code size} через {@link ReadPipeline}
+     * @param size - размер читаемой области
+     * @return {@code true} для чтения отдельным потоком
+     */
+    public boolean usePipeline(long size) {
+        return size > ReadPipeline.BUFFER_SIZE && (this == PIPELINE || (this == AUTO && size >= THRESHOLD));
+    }
+
+    /**
+     * Возвращает режим по имени
+     * @param name - имя режима ({@code stream}, {@code mmap}, {@code pipeline} или {@code auto};
+     *               {@code auto} выбирает {@code pipeline} для областей от 16 МиБ, см. {@code -Dsign.io.threshold})
+     * @return Режим
+     * @throws IllegalArgumentException - если такого режима нет
+     */
+    public static ReadMode forName(String name) {
+        for(ReadMode now : values()) {
+            if (now.name.equalsIgnoreCase(name)) {
+                return now;
+            }
+        }
+        throw new IllegalArgumentException("Unknown read mode: " + name);
+    }
+
+    /**
+     * Текущий выбранный режим
+     */
+    public static ReadMode current() {
+        return current;
+    }
+
+    public static void select(ReadMode mode) {
+        current = mode;
+    }
+
+    /**
+     * Выбирает режим: сначала {@code flag} из командной строки, затем системное свойство {@link #PROPERTY}.
+     * Если ничего не задано, остается {@link #AUTO}.
+     * @param flag - значение флага {@code --io} или {@code null}
+     */
+    public static void configure(String flag) {
+        String name = flag != null ? flag : System.getProperty(PROPERTY);
+        if (name != null) {
+            select(forName(name));
+        }
+    }
+
+    /**
+     * Подает {@code length} байт файла, начиная с {@code position}, в {@code hasher} выбранным способом
+     * @param channel - открытый канал файла
+     * @param position - начало области
+     * @param length - длина области
+     * @param hasher - хешер
+     * @throws IOException
+     */
+    public void hash(FileChannel channel, long position, long length, Hasher hasher) throws IOException {
+        if (usePipeline(length)) {
+            ReadPipeline.hash(channel, position, length, hasher);
+        }
+        else if (useMapping(length)) {
+            hashMapped(channel, position, length, hasher);
+        }
+        else {
+            hashStream(channel, position, length, hasher);
+        }
+    }
+
+    /**
+     * Подает первые {@code length} байт файла в {@code hasher} выбранным способом
+     * @param file - дескриптор файла
+     * @param length - количество байт
+     * @param hasher - хешер
+     * @throws IOException
+     */
+    public void hash(File file, long length, Hasher hasher) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            hash(channel, 0, length, hasher);
+        }
+    }
+
+    private static void hashMapped(FileChannel channel, long position, long length, Hasher hasher) throws IOException {
+        long end = position + length;
+        if (channel.size() < end) {
+            throw new EOFException("Unexpected end of file at " + channel.size());
+        }
+        while (position < end) {
+            long window = Math.min(WINDOW_SIZE, end - position);
+            long start = Metrics.start();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+            Metrics.stop(Metrics.Phase.READ, start);
+            start = Metrics.start();
+            hasher.update(mapped);                                          // Вместе с подкачкой страниц
+            Metrics.stop(Metrics.Phase.HASH, start, window);
+            position += window;
+        }
+    }
+
+    private static void hashStream(FileChannel channel, long position, long length, Hasher hasher) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(BUFFER_SIZE, Math.max(length, 1)));
+        long end = position + length;
+        while (position < end) {
+            buffer.clear().limit((int)Math.min(buffer.capacity(), end - position));
+            long start = Metrics.start();
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of file at " + position);
+            }
+            Metrics.stop(Metrics.Phase.READ, start, n);
+            buffer.flip();
+            start = Metrics.start();
+            hasher.update(buffer);
+            Metrics.stop(Metrics.Phase.HASH, start, n);
+            position += n;
+        }
+    }
+}
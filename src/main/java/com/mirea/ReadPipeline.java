@@ -0,0 +1,192 @@
+package com.mirea;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Конвейер чтения для {@link ReadMode#PIPELINE}: отдельный поток читает файл в кольцо из {@link #getDepth()}
+ * direct-буферов по {@link #BUFFER_SIZE}, пока вызывающий поток хеширует уже прочитанные. Пока хешируется
+ * буфер N, читается N+1, поэтому время на файл стремится к большему из времени чтения и хеширования, а не к их сумме.
+ * </p> Буферы после работы возвращаются в общий запас и используются следующими файлами.
+ * Глубина задается флагом {@code --io-depth <N>} или свойством {@code -Dsign.io.depth=<N>}.
+ */
+final class ReadPipeline {
+
+    public static final String DEPTH_PROPERTY = "sign.io.depth";            // Системное свойство для глубины
+    public static final int DEFAULT_DEPTH = 4;                              // Буферов в кольце по умолчанию
+    public static final int BUFFER_SIZE = 1024 * 1024;                      // Размер одного буфера
+
+    private static final int MAX_SPARE = 64;                                // Буферов в запасе между файлами
+    private static final ByteBuffer END = ByteBuffer.allocate(0);           // Конец данных или отмена чтения
+
+    private static final Queue<ByteBuffer> spare = new ConcurrentLinkedQueue<>();
+    private static volatile int depth = DEFAULT_DEPTH;
+
+    /**
+     * Потоки чтения; создаются по требованию, простаивающие завершаются сами
+     */
+    private static final class Readers {
+        static final ExecutorService POOL = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "sign-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private ReadPipeline() {}
+
+    /**
+     * Сколько буферов в кольце
+     */
+    static int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Задает число буферов в кольце
+     * @param value - глубина, не меньше 2: при одном буфере чтение и хеширование не перекрываются
+     * @throws IllegalArgumentException - если глубина меньше 2
+     */
+    static void setDepth(int value) {
+        if (value < 2) {
+            throw new IllegalArgumentException("Pipeline depth should be at least 2");
+        }
+        depth = value;
+    }
+
+    /**
+     * Задает глубину: сначала {@code flag} из командной строки, затем системное свойство {@link #DEPTH_PROPERTY}.
+     * Если ничего не задано, остается {@link #DEFAULT_DEPTH}.
+     * @param flag - значение флага {@code --io-depth} или {@code null}
+     */
+    static void configure(String flag) {
+        String value = flag != null ? flag : System.getProperty(DEPTH_PROPERTY);
+        if (value != null) {
+            setDepth(Integer.parseInt(value));
+        }
+    }
+
+    /**
+     * Подает {@code length} байт файла, начиная с {@code position}, в {@code hasher}: чтение идет в отдельном потоке,
+     * хеширование - в вызывающем. Канал читается позиционно и не закрывается.
+     * @param channel - открытый канал файла
+     * @param position - начало области
+     * @param length - длина области
+     * @param hasher - хешер
+     * @throws IOException
+     */
+    static void hash(FileChannel channel, long position, long length, Hasher hasher) throws IOException {
+        int count = (int)Math.max(2, Math.min(depth, (length + BUFFER_SIZE - 1) / BUFFER_SIZE));
+        List<ByteBuffer> ring = new ArrayList<>(count);
+        BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(count + 1);
+        BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(count + 1);
+        for(int i = 0; i < count; i++) {
+            ByteBuffer buffer = spare.poll();
+            ring.add(buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+        free.addAll(ring);
+
+        Future<?> reader = Readers.POOL.submit(() -> {
+            read(channel, position, length, free, filled);
+            return null;
+        });
+        try {
+            while (true) {
+                ByteBuffer buffer = filled.take();
+                if (buffer == END) {
+                    break;
+                }
+                long start = Metrics.start();
+                int n = buffer.remaining();
+                hasher.update(buffer);
+                Metrics.stop(Metrics.Phase.HASH, start, n);
+                free.put(buffer);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing");
+        }
+        finally {
+            free.offer(END);                                                // Читатель мог ждать свободный буфер
+            finish(reader, ring);
+        }
+    }
+
+    /**
+     * Поток чтения: берет свободный буфер, заполняет его целиком (кроме последнего) и передает на хеширование.
+     * Останавливается по концу области, ошибке или {@link #END} в очереди свободных буферов.
+     */
+    private static void read(FileChannel channel, long position, long length, BlockingQueue<ByteBuffer> free,
+                             BlockingQueue<ByteBuffer> filled) throws IOException, InterruptedException {
+        long end = position + length;
+        try {
+            while (position < end) {
+                ByteBuffer buffer = free.take();
+                if (buffer == END) {
+                    return;                                                 // Хеширование прервано
+                }
+                buffer.clear().limit((int)Math.min(buffer.capacity(), end - position));
+                long start = Metrics.start();
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("Unexpected end of file at " + (position + buffer.position()));
+                    }
+                }
+                Metrics.stop(Metrics.Phase.READ, start, buffer.position());
+                position += buffer.position();
+                filled.put(buffer.flip());
+            }
+        }
+        finally {
+            filled.put(END);
+        }
+    }
+
+    /**
+     * Дожидается потока чтения, возвращает буферы в запас и передает его ошибку вызывающему
+     */
+    private static void finish(Future<?> reader, List<ByteBuffer> ring) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    reader.get();                                           // Буферы свободны только после выхода читателя
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        finally {
+            for(ByteBuffer buffer : ring) {
+                if (spare.size() < MAX_SPARE) {
+                    spare.offer(buffer);
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -2,15 +2,15 @@ package com.mirea;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.InvalidParameterException;
+import java.util.Arrays;
 
-public class SHA256 {
+public class SHA256 implements Hasher {
 
     
     /**
      * Константы
      */
-    private static int[] k = {
+    static final int[] k = {
         0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
         0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
         0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
@@ -22,144 +22,216 @@ public class SHA256 {
     };
 
     /**
-     * Устанавливает {@code c}-ый бит числа {@code t} в значение {@code v}
-     * @param t - число
-     * @param c - номер бита
-     * @param v - значение бита
-     * @return Число с изменненым битом
-     * 
-     * @see https://stackoverflow.com/questions/4674006/set-specific-bit-in-byte
+     * Начальные параметры
      */
-    private static int setBit(int t, int c, int v) { 
-        if (v != 1 && v != 0) 
-            throw new InvalidParameterException("New value of bit should be 0 or 1");
-
-        if (v == 1) 
-            t |= 1 << c;
-        else 
-            t &= ~(1 << c);
+    static final int[] H0 = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
 
-        return t;
-    }
+    public static final int BLOCK_SIZE = 64;                                // Размер блока в байтах (512 бит)
+    public static final int DIGEST_SIZE = 32;                               // Размер хеш-суммы в байтах
+    public static final int STATE_SIZE = 8 * Integer.BYTES + Long.BYTES;    // Размер выгруженного состояния в байтах
 
     /**
-     * Переводит из массива байтов в массив битов
-     * @param bitArray - массив битов, в который будет сделана запись
-     * @param source - источник байтов
-     * @return Последний пустой элемент
+     * Количество дорожек Vector API для {@link #getHashes(byte[][])}, 0 - Vector API недоступен.
+     * Отключается свойством {@code -Dsign.vector=false}.
      */
-    private static int convertToBits(byte[] bitArray, byte[] source) {
-        for(int i = 0; i < source.length * 8; i++) {
-            byte nowByte = source[i / 8];
+    static final int VECTOR_LANES = detectVectorLanes();
 
-            bitArray[i] = (byte)(nowByte >> (7 - (i % 8)) & 1);
-        }
+    private final int[] h = new int[8];                                     // Текущее состояние (8 слов)
+    private final byte[] block = new byte[BLOCK_SIZE];                      // Неполный блок
+    private int blockLength;                                                // Заполнено байт в неполном блоке
+    private long count;                                                     // Всего обработано байт
+    private final int[] w = new int[64];                                    // Расписание сообщения, общее для всех блоков
 
-        return source.length * 8;
-    } 
+    public SHA256() {
+        reset();
+    }
 
+    private static int detectVectorLanes() {
+        if (!Boolean.parseBoolean(System.getProperty("sign.vector", "true"))
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return 0;
+        }
+        try {
+            return VectorSHA256.lanes();                                    // Класс грузится только при наличии модуля
+        }
+        catch (LinkageError e) {
+            return 0;
+        }
+    }
 
     /**
-     * Запись размера контента в послднии 64 байта {@code bitArray} 
-     * @param bitArray - массив битов
-     * @param contentSize - размер контента
+     * Возвращает хешер в начальное состояние
      */
-    private static void writeContentSize(byte[] bitArray, long contentSize) {
-        int rnd = 63;
-        for(int i = bitArray.length - 64; i < bitArray.length; i++) {
-            bitArray[i] = (byte)(contentSize >> rnd & 1);
-            rnd--;
-        }
+    public void reset() {
+        System.arraycopy(H0, 0, h, 0, h.length);
+        blockLength = 0;
+        count = 0;
     }
 
+    /**
+     * Добавляет {@code length} байт из {@code source}, начиная с {@code offset}, к хешируемому сообщению.
+     * Полные блоки обрабатываются сразу, в памяти остается только неполный блок.
+     * @param source - массив байт
+     * @param offset - смещение
+     * @param length - количество байт
+     */
+    @Override
+    public void update(byte[] source, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > source.length)
+            throw new IndexOutOfBoundsException("Range [" + offset + ", " + (offset + length) + ") out of bounds for length " + source.length);
+
+        count += length;
+
+        if (blockLength > 0) {                                              // Дополняем неполный блок
+            int n = Math.min(length, BLOCK_SIZE - blockLength);
+            System.arraycopy(source, offset, block, blockLength, n);
+            blockLength += n;
+            offset += n;
+            length -= n;
+            if (blockLength < BLOCK_SIZE)
+                return;
+            compress(block, 0);
+            blockLength = 0;
+        }
+
+        while (length >= BLOCK_SIZE) {                                      // Полные блоки прямо из источника
+            compress(source, offset);
+            offset += BLOCK_SIZE;
+            length -= BLOCK_SIZE;
+        }
+
+        System.arraycopy(source, offset, block, 0, length);                 // Остаток
+        blockLength = length;
+    }
 
     /**
-     * Запись из массива битов {@code bitArray} в массив слов (слово = 32 бита) {@code w}. 
-     * @param bitArray - массив битов
-     * @param w - массив слов
-     * @param count - количество слов, которые надо скопировать
+     * Добавляет оставшиеся байты буфера {@code source} к хешируемому сообщению.
+     * После вызова позиция буфера равна его пределу.
+     * @param source - буфер
      */
-    private static void writeWords(byte[] bitArray, int[] w, int count) {
-        int j = count - 1;
-        int rnd = 0;
-        int temp = 0;
-        for(int i = count * 32 - 1; i >= 0 ; i--) {
-
-            if(bitArray[i] == 1) {
-                temp = setBit(temp, rnd, 1);
-            }
-            rnd++;
-            
-            if (i % 32 == 0) {
-                w[j] = temp;
-                j--;
-                temp = 0;
-                rnd = 0;
+    @Override
+    public void update(ByteBuffer source) {
+        if (source.hasArray()) {
+            int length = source.remaining();
+            update(source.array(), source.arrayOffset() + source.position(), length);
+            source.position(source.limit());
+            return;
+        }
+
+        while (source.hasRemaining()) {                                     // Direct-буфер: копируем через неполный блок
+            int n = Math.min(source.remaining(), BLOCK_SIZE - blockLength);
+            source.get(block, blockLength, n);
+            blockLength += n;
+            count += n;
+            if (blockLength == BLOCK_SIZE) {
+                compress(block, 0);
+                blockLength = 0;
             }
         }
     }
-    
-
-    
 
     /**
-     * Круговой сдвиг вправо
-     * @param src - исходное число
-     * @param count - длина сдвига
-     * @return Результирующее число
+     * Завершает вычисление: дописывает единичный бит, нули и размер сообщения в битах.
+     * После вызова хешер возвращается в начальное состояние.
+     * @return Хеш-сумма
      */
-    private static int roundRotateRight(int src, int count) {
-        int result = src;
-        for(int i = 0; i < count; i++) {
-            int bit = src & 1; // Последний бит
-            src = src >>> 1;
-            if (bit == 1) 
-                src = setBit(src, 31, 1);   
-            else
-                src = setBit(src, 31, 0);
-
-            result = src;
-
+    @Override
+    public byte[] digest() {
+        long bitLength = count * 8;
+
+        block[blockLength++] = (byte)0x80;                                  // Приколюхная единичка
+        if (blockLength > BLOCK_SIZE - Long.BYTES) {                        // Под размер места не осталось
+            Arrays.fill(block, blockLength, BLOCK_SIZE, (byte)0);
+            compress(block, 0);
+            blockLength = 0;
+        }
+        Arrays.fill(block, blockLength, BLOCK_SIZE - Long.BYTES, (byte)0);
+        for(int i = 0; i < Long.BYTES; i++) {                               // Размер контента
+            block[BLOCK_SIZE - 1 - i] = (byte)(bitLength >>> (8 * i));
         }
+        compress(block, 0);
+
+        byte[] result = convertToBytes(h);
+        reset();
         return result;
     }
 
     /**
-     * Битовый сдвиг вправо
-     * @param src - исходное число
-     * @param count - длина сдвига
-     * @return Получившиеся число
+     * Количество байт, добавленных с последнего {@link #reset()}
      */
-    private static int shiftRotateRight(int src, int count) {
-        int result = src;
-        for(int i = 0; i < count; i++) {
-            src = src >> 1;
-
-            src = setBit(src, 31, 0);
+    public long getCount() {
+        return count;
+    }
 
-            result = src;
+    /**
+     * Выгружает промежуточное состояние: 8 слов цепочки и количество обработанных байт (big-endian).
+     * Состояние можно выгрузить только на границе блока, когда неполного блока нет.
+     * @return {@link #STATE_SIZE} байт
+     * @throws IllegalStateException - если обработано не кратное {@link #BLOCK_SIZE} число байт
+     */
+    public byte[] exportState() {
+        if (blockLength != 0) {
+            throw new IllegalStateException("State can be exported only at a block boundary");
         }
+        ByteBuffer result = ByteBuffer.allocate(STATE_SIZE);
+        for(int now : h) {
+            result.putInt(now);
+        }
+        return result.putLong(count).array();
+    }
 
-        return result;
+    /**
+     * Загружает состояние, выгруженное {@link #exportState()}. Дальнейшие {@code update} продолжают
+     * то же сообщение с того места, где оно было выгружено.
+     * @param state - {@link #STATE_SIZE} байт
+     * @throws IllegalArgumentException - если состояние неверного размера или не на границе блока
+     */
+    public void importState(byte[] state) {
+        if (state.length != STATE_SIZE) {
+            throw new IllegalArgumentException("Incorrect state size");
+        }
+        ByteBuffer in = ByteBuffer.wrap(state);
+        int[] words = new int[h.length];
+        for(int i = 0; i < words.length; i++) {
+            words[i] = in.getInt();
+        }
+        long processed = in.getLong();
+        if (processed < 0 || processed % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("State is not at a block boundary");
+        }
+        System.arraycopy(words, 0, h, 0, h.length);
+        count = processed;
+        blockLength = 0;
+    }
 
-        // return src >>> count;
+    /**
+     * Читает 32-битное слово в порядке big-endian из {@code source}, начиная с {@code offset}
+     * @param source - массив байт
+     * @param offset - смещение
+     * @return Слово
+     */
+    static int readWord(byte[] source, int offset) {
+        return (source[offset] << 24)
+             | ((source[offset + 1] & 0xFF) << 16)
+             | ((source[offset + 2] & 0xFF) << 8)
+             | (source[offset + 3] & 0xFF);
     }
 
     /**
-     * Переводит массив слов в байты
+     * Переводит массив слов в байты (big-endian)
      * @param source - исходный массив слов
      * @return Массив байт
      */
-    private static byte[] convertToBytes(int[] source) {
+    static byte[] convertToBytes(int[] source) {
         byte[] result = new byte[source.length * 4];
-        int index = 0;
 
         for(int i = 0; i < source.length; i++) {
-            ByteBuffer bb = ByteBuffer.allocate(4);
-            bb.putInt(source[i]);
-
-            System.arraycopy(bb.array(), 0, result, index, 4);
-            index += 4;
+            result[i * 4] = (byte)(source[i] >>> 24);
+            result[i * 4 + 1] = (byte)(source[i] >>> 16);
+            result[i * 4 + 2] = (byte)(source[i] >>> 8);
+            result[i * 4 + 3] = (byte)source[i];
         }
         return result;
     }
@@ -182,122 +254,94 @@ public class SHA256 {
     }
 
     /**
-     * Высчитываем хеш-сумму по алгоритму {@code SHA-256} для массива битов {@code content}
-     * @param content - массив битов
+     * Высчитываем хеш-сумму по алгоритму {@code SHA-256} для массива байт {@code content}
+     * @param content - массив байт
      * @return Хеш-сумма
      * @see https://tproger.ru/translations/sha-2-step-by-step/
      */
     public static byte[] getHash(byte[] content) {
+        SHA256 sha = new SHA256();
+        sha.update(content);
+        return sha.digest();
+    }
 
-        /**
-         * Начальные параметры
-         */
-        int h0 = 0x6a09e667;
-        int h1 = 0xbb67ae85; 
-        int h2 = 0x3c6ef372; 
-        int h3 = 0xa54ff53a; 
-        int h4 = 0x510e527f; 
-        int h5 = 0x9b05688c; 
-        int h6 = 0x1f83d9ab; 
-        int h7 = 0x5be0cd19; 
-
-        /**
-         * Считаем размер
-         */
-        int bitArraySize = content.length * 8 ;                             // Чисто контент
-        bitArraySize += 1;                                                  // 1 бит равный единице
-        bitArraySize += 64;                                                 // Оставляем место под размер содержимого
-        bitArraySize = bitArraySize + (512 - bitArraySize % 512);           // Выравниваем до 512; 
-        
-
-        /**
-         * Предворительное заполнение
-         */
-        byte[] bitArray = new byte[bitArraySize];                           // Инициализация массива бит
-        int lastIndex = convertToBits(bitArray, content);                   // Чисто контент
-        bitArray[lastIndex] = 1;                                            // Приколюхная единичка
-        long contentSize = content.length * 8;                              // Размер контента
-        writeContentSize(bitArray, contentSize);
-
-
-
-        /**
-         * Основной цикл хеширования
-         */
-
-        for(int i = 0; i < bitArraySize / 512; i++) { 
-            byte[] subBitArray = new byte[512];                             // Берем кусок битового массива длиной 512 бит
-            System.arraycopy(bitArray, i * 512, subBitArray, 0, 512);       
-
-            int[] w = new int[64];                                          // Добавляем 48 32-битных слов, заполненые нулями 
-            writeWords(subBitArray, w, 16);                                 // Записываем первые 16 слов (512 бит)
-
-            for(int j = 16; j < 64; j++) {
-                int a = roundRotateRight(w[j - 15], 7);
-                int b = roundRotateRight(w[j - 15], 18);
-                int c = shiftRotateRight(w[j - 15], 3);
-
-                int s0 = a ^ b ^ c;
-
-                a = roundRotateRight(w[j - 2], 17);
-                b = roundRotateRight(w[j - 2], 19);
-                c = shiftRotateRight(w[j - 2], 10);
-
-                int s1 = a ^ b ^ c;
-
-                w[j] = w[j - 16] + s0 + w[j - 7] + s1;
-            }
+    /**
+     * Высчитываем хеш-суммы сразу для набора независимых сообщений.
+     * Если доступен Vector API ({@code --add-modules jdk.incubator.vector}), сообщения идут
+     * через раунды сжатия вместе, по одному в каждой дорожке вектора ({@link VectorSHA256}).
+     * Иначе сообщения хешируются по очереди одним хешером.
+     * @param contents - сообщения
+     * @return Хеш-суммы в том же порядке
+     */
+    public static byte[][] getHashes(byte[][] contents) {
+        if (VECTOR_LANES >= 4 && contents.length > 1) {
+            return VectorSHA256.getHashes(contents);
+        }
 
-            /**
-             * Цикл сжатия
-             */
-            int a = h0;
-            int b = h1;
-            int c = h2;
-            int d = h3;
-            int e = h4;
-            int f = h5;
-            int g = h6;
-            int h = h7;
-            for(int j = 0; j < 64; j++) {
-                int S1 = roundRotateRight(e, 6) ^ roundRotateRight(e, 11) ^ roundRotateRight(e, 25);
-                int ch = (e & f) ^ ((~e) & g);
-                int temp1 = h + S1 + ch + k[j] + w[j];
-                int S0 = roundRotateRight(a, 2) ^ roundRotateRight(a, 13) ^ roundRotateRight(a, 22);
-                int maj = (a & b) ^ (a & c) ^ (b & c);
-                int temp2 = S0 + maj;
-
-                h = g;
-                g = f;
-                f = e;
-                e = d + temp1;
-                d = c;
-                c = b;
-                b = a;
-                a = temp1 + temp2;
-            }
+        byte[][] result = new byte[contents.length][];
+        SHA256 sha = new SHA256();
+        for(int i = 0; i < contents.length; i++) {
+            sha.update(contents[i]);
+            result[i] = sha.digest();
+        }
+        return result;
+    }
+
+    /**
+     * Цикл сжатия одного блока {@code source[offset..offset+64)} в текущее состояние.
+     * Слова читаются прямо из источника, расписание сообщения {@link #w} переиспользуется.
+     * @param source - массив байт
+     * @param offset - смещение блока
+     */
+    private void compress(byte[] source, int offset) {
+        int[] w = this.w;
 
-            h0 = h0 + a;
-            h1 = h1 + b;
-            h2 = h2 + c;
-            h3 = h3 + d;
-            h4 = h4 + e;
-            h5 = h5 + f;
-            h6 = h6 + g;
-            h7 = h7 + h;
+        for(int j = 0; j < 16; j++) {                                       // Первые 16 слов (512 бит)
+            w[j] = readWord(source, offset + j * 4);
         }
 
-        int[] hArr = new int [8];
-        hArr[0] = h0;
-        hArr[1] = h1;
-        hArr[2] = h2;
-        hArr[3] = h3;
-        hArr[4] = h4;
-        hArr[5] = h5;
-        hArr[6] = h6;
-        hArr[7] = h7;
+        for(int j = 16; j < 64; j++) {
+            int w15 = w[j - 15];
+            int w2 = w[j - 2];
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
 
+            w[j] = w[j - 16] + s0 + w[j - 7] + s1;
+        }
+
+        int a = h[0];
+        int b = h[1];
+        int c = h[2];
+        int d = h[3];
+        int e = h[4];
+        int f = h[5];
+        int g = h[6];
+        int hh = h[7];
+        for(int j = 0; j < 64; j++) {
+            int S1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ ((~e) & g);
+            int temp1 = hh + S1 + ch + k[j] + w[j];
+            int S0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int temp2 = S0 + maj;
+
+            hh = g;
+            g = f;
+            f = e;
+            e = d + temp1;
+            d = c;
+            c = b;
+            b = a;
+            a = temp1 + temp2;
+        }
 
-        return convertToBytes(hArr);
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+        h[4] += e;
+        h[5] += f;
+        h[6] += g;
+        h[7] += hh;
     }
 }
@@ -0,0 +1,605 @@
+package com.mirea;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Долгоживущий процесс подписи и проверки на локальном сокете (Unix domain socket).
+ * </p> Ключи разбираются один раз при запуске, вместе с их предвычислениями ({@link ModExpEngine}, {@link Keyring}).
+ * Запросы клиентов складываются в общую ограниченную очередь, рабочие потоки забирают их пачками:
+ * первый запрос ждут, остальные забирают без ожидания ({@code drainTo}), поэтому под нагрузкой пачки
+ * растут сами, а одиночный запрос не ждет соседей. Небольшие файлы пачки на подпись хешируются вместе
+ * через {@link DigestProvider#hashAll(byte[][])}, как в {@link BatchSigner}.
+ * </p> Если очередь полна дольше {@link #OFFER_TIMEOUT_MS} мс, запрос сразу получает ответ {@code BUSY}:
+ * клиент повторяет его позже, а очередь и память не растут. Неотправленных ответов на соединение не больше
+ * {@link #MAX_PENDING}: пока клиент их не забирает, новые запросы с его сокета не читаются.
+ * </p> Протокол текстовый. Запрос - строка {@code <команда> <аргумент>\n}. Ответ - строка
+ * {@code <статус> <длина>\n} и затем ровно {@code <длина>} байт текста в UTF-8. Статусы: {@code OK},
+ * {@code INVALID} (подпись не прошла проверку), {@code ERROR}, {@code BUSY}. На одном соединении
+ * можно отправить несколько запросов подряд, ответы приходят в том же порядке.
+ * </p> Команды ({@link Command}): {@code sign}, {@code sign-detached}, {@code verify}, {@code verify-detached}
+ * с абсолютным путем до файла, {@code metrics [prometheus|json]} и {@code ping}.
+ */
+public final class SignDaemon implements AutoCloseable {
+
+    public static final int DEFAULT_QUEUE_SIZE = 1024;                      // Запросов в очереди по умолчанию
+    public static final int MAX_BATCH = 64;                                 // Запросов в одной пачке
+    private static final long OFFER_TIMEOUT_MS = 10;                        // Ожидание места в очереди до BUSY
+    private static final int MAX_PENDING = 256;                             // Ответов в ожидании отправки на соединение
+    private static final int MAX_LINE = 64 * 1024;                          // Предел длины строки запроса
+    private static final int WARM_UP_ROUNDS = 200;                          // Прогревочных подписей при запуске
+    private static final int WARM_UP_SIZE = 64 * 1024;
+
+    /**
+     * Команды протокола
+     */
+    public enum Command {
+        SIGN("sign"),
+        SIGN_DETACHED("sign-detached"),
+        VERIFY("verify"),
+        VERIFY_DETACHED("verify-detached"),
+        METRICS("metrics"),
+        PING("ping");
+
+        private final String name;
+
+        Command(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Возвращает команду по имени
+         * @throws IllegalArgumentException - если такой команды нет
+         */
+        public static Command forName(String name) {
+            for(Command now : values()) {
+                if (now.name.equals(name)) {
+                    return now;
+                }
+            }
+            throw new IllegalArgumentException("Unknown command: " + name);
+        }
+    }
+
+    /**
+     * Ответ на запрос
+     */
+    public static final class Reply {
+        public static final String OK = "OK";
+        public static final String INVALID = "INVALID";
+        public static final String ERROR = "ERROR";
+        public static final String BUSY = "BUSY";
+
+        private final String status;
+        private final String message;
+
+        Reply(String status, String message) {
+            this.status = status;
+            this.message = message;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public boolean isOk() {
+            return status.equals(OK);
+        }
+
+        @Override
+        public String toString() {
+            return status + " " + message;
+        }
+    }
+
+    /**
+     * Запрос в очереди
+     */
+    private static final class Request {
+        final Command command;
+        final Path path;
+        final CompletableFuture<Reply> reply = new CompletableFuture<>();
+
+        Request(Command command, Path path) {
+            this.command = command;
+            this.path = path;
+        }
+    }
+
+    private static final CompletableFuture<Reply> END = new CompletableFuture<>();  // Конец запросов соединения
+
+    private final Path socket;
+    private final Signer signer;
+    private final Verifier verifier;
+    private final int workers;
+    private final BlockingQueue<Request> queue;
+    private final List<Thread> threads = new ArrayList<>();
+    private ServerSocketChannel server;
+    private ExecutorService connections;
+    private volatile boolean closed;
+
+    /**
+     * @param socket - путь до файла сокета
+     * @param signer - подписывающий объект или {@code null}, если подпись не нужна
+     * @param verifier - проверяющий объект или {@code null}, если проверка не нужна
+     * @param workers - число рабочих потоков
+     * @param queueSize - размер очереди запросов
+     */
+    public SignDaemon(Path socket, Signer signer, Verifier verifier, int workers, int queueSize) {
+        if (signer == null && verifier == null) {
+            throw new IllegalArgumentException("Daemon needs a private or a public key");
+        }
+        if (workers <= 0 || queueSize <= 0) {
+            throw new IllegalArgumentException("Workers and queue size should be positive");
+        }
+        this.socket = socket;
+        this.signer = signer;
+        this.verifier = verifier;
+        this.workers = workers;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    /**
+     * Прогревает JIT, открывает сокет и запускает рабочие потоки. Не блокирует.
+     * @throws IOException - если сокет занят другим работающим процессом или не создается
+     */
+    public void start() throws IOException {
+        warmUp();
+        if (Files.exists(socket)) {
+            if (isAlive(socket)) {
+                throw new IOException("Daemon is already running on " + socket);
+            }
+            Files.delete(socket);                                           // Сокет от упавшего процесса
+        }
+        Metrics.setEnabled(true);
+        server = bindPrivate(socket);
+        connections = BulkVerifier.newExecutor(Executors::newCachedThreadPool);   // Соединение держит поток, пока открыто
+
+        for(int i = 0; i < workers; i++) {
+            Thread worker = new Thread(this::work, "sign-worker-" + i);
+            threads.add(worker);
+            worker.start();
+        }
+        Thread acceptor = new Thread(this::accept, "sign-acceptor");
+        threads.add(acceptor);
+        acceptor.start();
+    }
+
+    /**
+     * Открывает сокет, к которому может подключиться только владелец процесса: сокет создается в каталоге
+     * с правами 0700, получает права 0600 и только потом переносится на место {@code socket}.
+     * Так подключиться к нему чужим пользователям нельзя ни в какой момент, даже до смены прав.
+     * @param socket - путь до файла сокета
+     * @return Открытый сокет
+     * @throws IOException
+     */
+    private static ServerSocketChannel bindPrivate(Path socket) throws IOException {
+        Path absolute = socket.toAbsolutePath();
+        Path directory = Files.createTempDirectory(absolute.getParent(), ".sign",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        Path hidden = directory.resolve("s");
+        ServerSocketChannel result = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            result.bind(UnixDomainSocketAddress.of(hidden));
+            Files.setPosixFilePermissions(hidden, PosixFilePermissions.fromString("rw-------"));    // Подписывать ключом может только владелец
+            Files.move(hidden, absolute, StandardCopyOption.ATOMIC_MOVE);
+            return result;
+        }
+        catch (IOException | RuntimeException e) {
+            result.close();
+            Files.deleteIfExists(hidden);
+            throw e;
+        }
+        finally {
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static boolean isAlive(Path socket) {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Гоняет подпись и проверку в памяти, чтобы первые клиенты попали на скомпилированный код
+     */
+    private void warmUp() {
+        byte[] content = new byte[WARM_UP_SIZE];
+        try {
+            for(int i = 0; i < WARM_UP_ROUNDS; i++) {
+                content[0] = (byte)i;
+                if (signer != null) {
+                    byte[] sign = signer.sign(content);
+                    if (verifier != null) {
+                        byte[] signed = new byte[content.length + sign.length];
+                        System.arraycopy(content, 0, signed, 0, content.length);
+                        System.arraycopy(sign, 0, signed, content.length, sign.length);
+                        verifier.verify(signed);                            // Ключи могут быть из разных пар
+                    }
+                }
+                else {
+                    DigestProvider.current().newHasher().update(content);
+                }
+            }
+        }
+        catch (Exception e) {
+            // Прогрев необязателен
+        }
+        Metrics.reset();
+    }
+
+    private void accept() {
+        while (!closed) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            }
+            catch (ClosedChannelException e) {
+                return;
+            }
+            catch (IOException e) {
+                continue;
+            }
+            connections.execute(() -> serve(channel));
+        }
+    }
+
+    /**
+     * Читает запросы соединения и ставит их в очередь, ответы пишет отдельная задача в порядке запросов
+     */
+    private void serve(SocketChannel channel) {
+        BlockingQueue<CompletableFuture<Reply>> pending = new ArrayBlockingQueue<>(MAX_PENDING);
+        connections.execute(() -> reply(channel, pending));
+        try {
+            InputStream in = new BufferedInputStream(input(channel));
+            String line;
+            while ((line = readLine(in)) != null) {
+                if (!enqueue(channel, pending, handle(line))) {
+                    return;
+                }
+            }
+        }
+        catch (IOException e) {
+            // Клиент отключился или прислал слишком длинную строку
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            try {
+                enqueue(channel, pending, END);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Ставит ответ в очередь соединения. Пока очередь полна, сокет не читается: клиент, который
+     * не забирает ответы, упирается в свой буфер отправки, а память демона не растет.
+     * @return {@code false}, если соединение уже закрыто и ответы никто не отправит
+     */
+    private static boolean enqueue(SocketChannel channel, BlockingQueue<CompletableFuture<Reply>> pending,
+                                   CompletableFuture<Reply> next) throws InterruptedException {
+        while (!pending.offer(next, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            if (!channel.isOpen()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void reply(SocketChannel channel, BlockingQueue<CompletableFuture<Reply>> pending) {
+        try (channel) {
+            OutputStream out = new BufferedOutputStream(output(channel));
+            while (true) {
+                CompletableFuture<Reply> next = pending.take();
+                if (next == END) {
+                    break;
+                }
+                writeReply(out, next.join());
+                if (pending.isEmpty()) {
+                    out.flush();                                            // Сбрасываем, когда ответы кончились
+                }
+            }
+            out.flush();
+        }
+        catch (IOException | InterruptedException e) {
+            // Клиент отключился, не дождавшись ответов
+        }
+    }
+
+    private CompletableFuture<Reply> handle(String line) {
+        int space = line.indexOf(' ');
+        String argument = space < 0 ? "" : line.substring(space + 1);
+        Command command;
+        Path path;
+        try {
+            command = Command.forName(space < 0 ? line : line.substring(0, space));
+            switch (command) {
+                case PING:
+                    return CompletableFuture.completedFuture(new Reply(Reply.OK, "pong"));
+                case METRICS:
+                    return CompletableFuture.completedFuture(new Reply(Reply.OK, Metrics.export(argument.isEmpty() ? "prometheus" : argument)));
+                default:
+                    break;
+            }
+            path = Paths.get(argument);                                     // InvalidPathException, например на NUL
+        }
+        catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(new Reply(Reply.ERROR, e.getMessage()));
+        }
+
+        if (!path.isAbsolute()) {
+            return CompletableFuture.completedFuture(new Reply(Reply.ERROR, "Path should be absolute: " + argument));
+        }
+        Request request = new Request(command, path);
+        try {
+            if (closed || !queue.offer(request, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                return CompletableFuture.completedFuture(new Reply(Reply.BUSY, "Queue is full"));
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.completedFuture(new Reply(Reply.BUSY, "Daemon is stopping"));
+        }
+        return request.reply;
+    }
+
+    private void work() {
+        List<Request> batch = new ArrayList<>(MAX_BATCH);
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            process(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Выполняет пачку: небольшие файлы на подпись хешируются вместе, остальное - по одному
+     */
+    private void process(List<Request> batch) {
+        List<Request> small = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        for(Request request : batch) {
+            try {
+                if (request.command == Command.SIGN && signer != null && Files.size(request.path) < BatchSigner.SMALL_FILE) {
+                    contents.add(Files.readAllBytes(request.path));
+                    small.add(request);
+                    continue;
+                }
+                request.reply.complete(run(request));
+            }
+            catch (Exception e) {
+                request.reply.complete(error(e));
+            }
+        }
+        if (small.isEmpty()) {
+            return;
+        }
+
+        byte[][] hashes;
+        try {
+            hashes = DigestProvider.current().hashAll(contents.toArray(new byte[0][]));
+        }
+        catch (Exception e) {
+            for(Request request : small) {
+                request.reply.complete(error(e));
+            }
+            return;
+        }
+        for(int i = 0; i < small.size(); i++) {
+            Request request = small.get(i);
+            try {
+                Path signed = Signer.appendSign(request.path, signer.signDigest(contents.get(i).length, hashes[i]));
+                request.reply.complete(new Reply(Reply.OK, signed.toString()));
+            }
+            catch (Exception e) {
+                request.reply.complete(error(e));
+            }
+        }
+    }
+
+    private Reply run(Request request) throws Exception {
+        switch (request.command) {
+            case SIGN:
+            case SIGN_DETACHED:
+                if (signer == null) {
+                    return new Reply(Reply.ERROR, "Daemon has no private key");
+                }
+                Path signed = request.command == Command.SIGN
+                        ? signer.signFile(request.path)
+                        : signer.signFileDetached(request.path, false);
+                return new Reply(Reply.OK, signed.toString());
+            default:
+                if (verifier == null) {
+                    return new Reply(Reply.ERROR, "Daemon has no public key");
+                }
+                VerifyResult result = request.command == Command.VERIFY
+                        ? verifier.verifyFile(request.path)
+                        : verifier.verifyFileDetached(request.path);
+                return new Reply(result.isValid() ? Reply.OK : Reply.INVALID, result.getMessage());
+        }
+    }
+
+    private static Reply error(Exception e) {
+        String message = e instanceof NoSuchFileException
+                ? "file " + ((NoSuchFileException)e).getFile() + " is not exist"
+                : String.valueOf(e.getMessage());
+        return new Reply(Reply.ERROR, message);
+    }
+
+    /**
+     * Останавливает прием запросов, отвечает {@code ERROR} на запросы в очереди и удаляет файл сокета
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (server != null) {
+            server.close();
+        }
+        for(Thread now : threads) {
+            now.interrupt();
+        }
+        List<Request> left = new ArrayList<>();
+        queue.drainTo(left);
+        for(Request request : left) {
+            request.reply.complete(new Reply(Reply.ERROR, "Daemon is stopping"));
+        }
+        if (connections != null) {
+            connections.shutdown();
+        }
+        Files.deleteIfExists(socket);
+    }
+
+    /**
+     * Ждет остановки рабочих потоков
+     * @throws InterruptedException
+     */
+    public void join() throws InterruptedException {
+        for(Thread now : threads) {
+            now.join();
+        }
+    }
+
+    /**
+     * Поток чтения из канала. {@code Channels.newInputStream} не подходит: чтение и запись через
+     * {@code Channels} на одном {@code SocketChannel} делят одну блокировку и из разных потоков
+     * ждут друг друга, а сам канал читает и пишет под разными.
+     */
+    static InputStream input(SocketChannel channel) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                return length == 0 ? 0 : channel.read(ByteBuffer.wrap(buffer, offset, length));
+            }
+        };
+    }
+
+    /**
+     * Поток записи в канал, см. {@link #input(SocketChannel)}
+     */
+    static OutputStream output(SocketChannel channel) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte)b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+        };
+    }
+
+    /**
+     * Читает строку до {@code \n} в UTF-8
+     * @return Строка без перевода строки или {@code null} в конце потока
+     * @throws IOException - если строка длиннее {@link #MAX_LINE}
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("Unexpected end of stream");
+            }
+            if (line.size() >= MAX_LINE) {
+                throw new IOException("Line is too long");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    static void writeReply(OutputStream out, Reply reply) throws IOException {
+        byte[] message = reply.message.getBytes(StandardCharsets.UTF_8);
+        out.write((reply.status + " " + message.length + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(message);
+    }
+
+    static Reply readReply(InputStream in) throws IOException {
+        String header = readLine(in);
+        if (header == null) {
+            throw new EOFException("Daemon closed the connection");
+        }
+        int space = header.indexOf(' ');
+        if (space < 0) {
+            throw new IOException("Incorrect reply: " + header);
+        }
+        int length;
+        try {
+            length = Integer.parseInt(header.substring(space + 1));
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Incorrect reply: " + header);
+        }
+        byte[] message = in.readNBytes(length);
+        if (message.length != length) {
+            throw new EOFException("Daemon closed the connection");
+        }
+        return new Reply(header.substring(0, space), new String(message, StandardCharsets.UTF_8));
+    }
+}
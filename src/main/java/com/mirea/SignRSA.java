@@ -3,10 +3,26 @@ package com.mirea;
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.security.NoSuchAlgorithmException;
-import java.util.Random;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 
 import com.mirea.SignRSA.KeyPair.PrivateKey;
 import com.mirea.SignRSA.KeyPair.PublicKey;
@@ -15,9 +31,23 @@ public class SignRSA {
     
     private static String PERSONAL_SIGN = "ozzero";                                             // Размер мекти
     private static int SIZE_OF_CRYPTED = 256;                                                   // Размер зашифрованного хеша 
-    private static int SIZE_OF_SIGN = PERSONAL_SIGN.length() * 2 + Long.BYTES + SIZE_OF_CRYPTED;// Размер всей подписи в конце файла
+    static int SIZE_OF_SIGN = PERSONAL_SIGN.length() * 2 + Long.BYTES + SIZE_OF_CRYPTED;        // Размер всей подписи в конце файла
                                                                                                 // |  Метка   | Размер файла |   Хеш-сумма   | Метка | EOF
                                                                                                 // |  6байт   |     8 байт   |   256 байт    | 6байт | EOF
+    private static String PERSONAL_SIGN_V2 = "ozzev2";                                          // Конечная метка подписи версии 2
+    static int SIZE_OF_SIGN_V2 = PERSONAL_SIGN.length() * 2 + Long.BYTES * 2 + SIZE_OF_CRYPTED;
+                                                                                                // |  Метка   | Размер файла | Размер куска | Корень дерева | Метка V2 | EOF
+                                                                                                // |  6байт   |     8 байт   |    8 байт    |   256 байт    |  6байт   | EOF
+    private static String PERSONAL_SIGN_DETACHED = "ozzdet";                                    // Конечная метка отдельного файла подписи
+    static int SIZE_OF_SIGN_DETACHED = PERSONAL_SIGN.length() * 2 + Long.BYTES * 2 + SIZE_OF_CRYPTED;
+                                                                                                // |  Метка   | Размер файла | Время изменения | Хеш-сумма | Метка DET | EOF
+                                                                                                // |  6байт   |     8 байт   |     8 байт      |  256 байт |   6байт   | EOF
+    private static String PERSONAL_SIGN_KEYED = "ozzek";                                        // Конечная метка подписи с отпечатком ключа: "ozzek" + версия
+    static int SIZE_OF_FINGERPRINT = SHA256.DIGEST_SIZE;                                        // Отпечаток ключа пишется перед хеш-суммой
+    private static int PRIME_SIZE = 1024;                                                       // Размер p и q в битах
+    private static BigInteger PUBLIC_EXPONENT = BigInteger.valueOf(65537);                      // Открытая экспонента
+    static int MAX_SIZE_OF_SIGN = Math.max(SIZE_OF_SIGN, SIZE_OF_SIGN_V2) + SIZE_OF_FINGERPRINT;  // Размер самой длинной подписи
+    static final long NO_TIMESTAMP = Long.MIN_VALUE;                                            // Время изменения не записано
 
 
 
@@ -34,6 +64,7 @@ public class SignRSA {
         static class PublicKey {
             BigInteger e = BigInteger.ZERO;
             BigInteger N = BigInteger.ZERO;
+            private volatile ModExpEngine engine;   // Контекст для e и N, создается при первом использовании
             
             PublicKey() {}
 
@@ -41,14 +72,38 @@ public class SignRSA {
                 this.e = e;
                 this.N = N;
             }
+
+            /**
+             * Отпечаток пары ключей, см. {@link KeyFormat#fingerprint}
+             */
+            byte[] fingerprint() {
+                return KeyFormat.fingerprint(N);
+            }
+
+            ModExpEngine engine() {
+                ModExpEngine result = engine;
+                if (result == null) {
+                    engine = result = new ModExpEngine(N, e);
+                }
+                return result;
+            }
         }
 
         /**
-         * Структура для закрытого ключа
+         * Структура для закрытого ключа.
+         * </p> Компоненты для Китайской теоремы об остатках ({@code p}, {@code q}, {@code dP}, {@code dQ}, {@code qInv})
+         * равны нулю, если ключ загружен из старого файла, где есть только {@code d} и {@code N}.
          */
         static class PrivateKey {
             BigInteger d = BigInteger.ZERO;
             BigInteger N = BigInteger.ZERO;
+            BigInteger p = BigInteger.ZERO;       // Простые множители N
+            BigInteger q = BigInteger.ZERO;
+            BigInteger dP = BigInteger.ZERO;      // d mod (p - 1)
+            BigInteger dQ = BigInteger.ZERO;      // d mod (q - 1)
+            BigInteger qInv = BigInteger.ZERO;    // q^-1 mod p
+            private volatile ModExpEngine[] engines;  // Контексты для (d, N) или (dP, p) и (dQ, q)
+            private volatile BigInteger e;            // Открытая экспонента, восстанавливается по p и q
 
             PrivateKey() {}
 
@@ -56,7 +111,55 @@ public class SignRSA {
                 this.d = d;
                 this.N = N;
             }
-            
+
+            PrivateKey(BigInteger d, BigInteger N, BigInteger p, BigInteger q) {
+                this(d, N);
+                this.p = p;
+                this.q = q;
+                this.dP = d.mod(p.subtract(BigInteger.ONE));
+                this.dQ = d.mod(q.subtract(BigInteger.ONE));
+                this.qInv = SignRSA.getInverse(q, p);
+            }
+
+            /**
+             * Отпечаток пары ключей, см. {@link KeyFormat#fingerprint}
+             */
+            byte[] fingerprint() {
+                return KeyFormat.fingerprint(N);
+            }
+
+            /**
+             * Есть ли у ключа компоненты для Китайской теоремы об остатках
+             */
+            boolean hasCRT() {
+                return p.signum() > 0 && q.signum() > 0;
+            }
+
+            /**
+             * Открытая экспонента {@code e = d^-1 mod (p - 1)(q - 1)} для проверки подписи CRT.
+             * В файле закрытого ключа ее нет, поэтому она считается при первом использовании.
+             */
+            BigInteger publicExponent() {
+                BigInteger result = e;
+                if (result == null) {
+                    e = result = d.modInverse(p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE)));
+                }
+                return result;
+            }
+
+            /**
+             * Контексты возведения в степень: {@code [(dP, p), (dQ, q)]} для CRT, иначе {@code [(d, N)]}
+             */
+            ModExpEngine[] engines() {
+                ModExpEngine[] result = engines;
+                if (result == null) {
+                    result = hasCRT()
+                            ? new ModExpEngine[] { new ModExpEngine(p, dP), new ModExpEngine(q, dQ) }
+                            : new ModExpEngine[] { new ModExpEngine(N, d) };
+                    engines = result;
+                }
+                return result;
+            }
         }
 
 
@@ -110,24 +213,20 @@ public class SignRSA {
 
 
     /**
-     * Возвращает строку содержащую хеш-сумму для {@code file} по {@code SHA-256}  
+     * Возвращает хеш-сумму для первых {@code sizeOfFile} байт {@code file} по {@code SHA-256}.
+     * Файл читается потоком через буфер фиксированного размера, отображается в память окнами
+     * или читается отдельным потоком параллельно с хешированием, в зависимости от {@link ReadMode#current()}.
      * @param file - дескриптор файла
      * @param sizeOfFile - количество байт, для которых нужно вычислить хеш-сумму
-     * @return Строка с хеш-суммой
+     * @return Хеш-сумма
      * @throws IOException
      * 
      * @see https://howtodoinjava.com/java/io/sha-md5-file-checksum-hash/
      */
-    public static byte[] getFileSHA256(File file, int sizeOfFile) throws IOException, NoSuchAlgorithmException {
-        FileInputStream fis = new FileInputStream(file);
-        byte[] bytes = SHA256.getHash(fis.readNBytes(sizeOfFile));
-        fis.close();
-
-        //!!! DEBUG
-        String s = SHA256.bytesToHex(bytes);
-        System.out.println("Hash of first " + Integer.toString(sizeOfFile) + " bytes of "  + file.getName() + " = " + s);
-        
-        return bytes;
+    public static byte[] getFileSHA256(File file, long sizeOfFile) throws IOException, NoSuchAlgorithmException {
+        Hasher sha = DigestProvider.current().newHasher();
+        ReadMode.current().hash(file, sizeOfFile, sha);
+        return sha.digest();
     }
 
     /**
@@ -146,114 +245,198 @@ public class SignRSA {
      * Вероятность того, что полученное число будет не простым не превышает 2^-100.
      * @param bitLength - Размер требуемого простого числа
      * @return Случайное простое число размером {@link bitLenght} бит 
+     * @see PrimeSearch
      */
     public static BigInteger getRandomPrime(int bitLength) {
-        return BigInteger.probablePrime(bitLength, new Random());
+        return PrimeSearch.randomPrime(bitLength, new SecureRandom());
     }
 
+    /**
+     * Создает пару ключей. Простые {@code p} и {@code q} ищутся одновременно в двух потоках,
+     * каждый со своим {@link SecureRandom}. Открытая экспонента - 65537, поэтому {@code p - 1} и {@code q - 1}
+     * сразу отбираются взаимно простыми с ней.
+     * @param parallel - искать {@code q} в отдельном потоке
+     * @return Пара ключей с компонентами для Китайской теоремы об остатках
+     */
+    static KeyPair newKeyPair(boolean parallel) {
+        CompletableFuture<BigInteger> pending = parallel
+                ? CompletableFuture.supplyAsync(() -> PrimeSearch.randomPrime(PRIME_SIZE, PUBLIC_EXPONENT, new SecureRandom()))
+                : null;
+        BigInteger p = PrimeSearch.randomPrime(PRIME_SIZE, PUBLIC_EXPONENT, new SecureRandom());        // p = Простое
+        BigInteger q = parallel ? pending.join() : PrimeSearch.randomPrime(PRIME_SIZE, PUBLIC_EXPONENT, new SecureRandom());
+        while (q.equals(p)) {                                               // q = Простое, не равное p
+            q = PrimeSearch.randomPrime(PRIME_SIZE, PUBLIC_EXPONENT, new SecureRandom());
+        }
+
+        BigInteger N = p.multiply(q);                                   // N = p * q
+        BigInteger Euler = p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE));
+        BigInteger d = SignRSA.getInverse(PUBLIC_EXPONENT, Euler);
+
+        KeyPair result = new KeyPair(PUBLIC_EXPONENT, d, N);
+        result.PrivateK = new PrivateKey(d, N, p, q);
+        return result;
+    }
 
     /**
      * Создает файлы {@code PrivateKey} и {@code PublicKey}. 
      * </p> В файле {@code PublicKey} находится 2 числа (открытая экспонента и N). Его можно передать вместе с зашифрованном сообщением.
-     * </p> В файле {@code PrivateKey} находится 2 числа (закрытая экспонента и N). Его необходимо держать в секрете.
+     * </p> В файле {@code PrivateKey} находится 7 чисел (закрытая экспонента, N, p, q, dP, dQ, qInv). Его необходимо держать в секрете.
      * </p> Для удобной связи {@code PrivateKey} и {@code PublicKey} в конце названия файла написан случайный общий идентификационный номер.
      */
     public static void generateKeys(String path) throws IOException{
-        BigInteger p = SignRSA.getRandomPrime(1024);                        // p = Простое
-
-        BigInteger q = SignRSA.getRandomPrime(1024);                        // q = Простое
-
-        BigInteger N = p.multiply(q);                                   // N = p * q
-        // !!! DEBUG
-        // System.out.println("N = " + N);
-        
-        BigInteger qMinusOne = q.subtract(new BigInteger("1"));
-        BigInteger pMinusOne = p.subtract(new BigInteger("1"));
-        BigInteger Euler = qMinusOne.multiply(pMinusOne);
+        generateKeys(path, 1, KeyFormat.TEXT);
+    }
 
-        BigInteger e = SignRSA.getRandomPrime(16);                          // Открытая экспонента
-        while( !Euler.gcd(e).equals(new BigInteger("1"))) {            // e и Euler взаимно просты
-            e = e.nextProbablePrime();
+    /**
+     * Создает {@code count} пар ключей на всех ядрах. Каждая пара ищется в одном потоке,
+     * параллельно идут разные пары.
+     * @param path - каталог для файлов ключей
+     * @param count - количество пар
+     * @param format - формат файлов
+     * @return Количество созданных пар
+     * @throws IOException - если хотя бы одна пара не записана
+     */
+    public static int generateKeys(String path, int count, KeyFormat format) throws IOException {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Count should be positive");
+        }
+        if (count == 1) {
+            writeKeys(path, newKeyPair(true), format);
+            return 1;
         }
 
-        // !!! DEBUG
-        //System.out.println("e = " + e);
-
-        BigInteger d = SignRSA.getInverse(e, Euler);
-        // !!! DEBUG
-        // System.out.println("d = " + d);
+        int threads = Math.min(count, Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> tasks = new ArrayList<>(count);
+        try {
+            for(int i = 0; i < count; i++) {
+                tasks.add(pool.submit(() -> {
+                    writeKeys(path, newKeyPair(false), format);
+                    return null;
+                }));
+            }
+            int created = 0;
+            for(Future<?> now : tasks) {
+                try {
+                    now.get();
+                    created++;
+                }
+                catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+                }
+            }
+            return created;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Key generation interrupted");
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
 
-        int id = new Random().nextInt(10000000);                        // Случайный id для названия файлов
-        File f1 = new File(path + "PublicKey" + Integer.toString(id));
-        File f2 = new File(path + "PrivateKey" + Integer.toString(id));
-        f1.createNewFile();
-        f2.createNewFile();
+    /**
+     * Записывает пару ключей в файлы {@code PublicKey<id>} и {@code PrivateKey<id>} с новым случайным id
+     * @param path - каталог (префикс пути) для файлов
+     * @param keys - пара ключей
+     * @param format - формат файлов
+     * @throws IOException
+     */
+    private static void writeKeys(String path, KeyPair keys, KeyFormat format) throws IOException {
+        PublicKey publicKey = keys.PublicK;
+        PrivateKey privateKey = keys.PrivateK;
+
+        File f1;
+        File f2;
+        while (true) {
+            int id = ThreadLocalRandom.current().nextInt(10000000);         // Случайный id для названия файлов
+            f1 = new File(path + "PublicKey" + Integer.toString(id));
+            f2 = new File(path + "PrivateKey" + Integer.toString(id));
+            if (f1.createNewFile()) {
+                if (f2.createNewFile()) {
+                    break;
+                }
+                f1.delete();                                                // id занят другой парой
+            }
+        }
 
         try (
             FileOutputStream outPublic = new FileOutputStream(f1);
             FileOutputStream outPrivate = new FileOutputStream(f2);
              ) {
 
-            outPublic.write(e.toString().getBytes());
-            outPublic.write(new String("\n").getBytes());
-            outPublic.write(N.toString().getBytes());
-
-            outPrivate.write(d.toString().getBytes());
-            outPrivate.write(new String("\n").getBytes());
-            outPrivate.write(N.toString().getBytes());
-
-        } catch (Exception ex) {
+            outPublic.write(format.encode(publicKey));
+            outPrivate.write(format.encode(privateKey));
 
-            File fPublic = new File("./PublicKey" + id);
-            fPublic.delete();
-            
-            File fPrivate = new File("./PrivateKey" + id);
-            fPrivate.delete();
-
-            ex.printStackTrace();
+        } catch (IOException ex) {
+            f1.delete();
+            f2.delete();
+            throw ex;
         }
     }
 
-
     /**
-     * Распаковывает файл с открытым ключом и возвращает объект {@link PublicKey}
+     * Распаковывает файл с открытым ключом и возвращает объект {@link PublicKey}.
+     * Формат файла ({@link KeyFormat}) определяется автоматически.
      * @param publicKey - путь до файла с открытым ключом
      * @return Объект {@link PublicKey} с закрытым ключом
      * @throws FileNotFoundException
      * @throws IOException
      */
     public static PublicKey getPublicKey(String publicKey) throws FileNotFoundException, IOException{
-        PublicKey result = new PublicKey();
-        try(BufferedReader in = new BufferedReader(new FileReader(publicKey));) {
-            String e = in.readLine();
-            String N = in.readLine();
-            result.e = new BigInteger(e);
-            result.N = new BigInteger(N);
-        }
-
+        long start = Metrics.start();
+        byte[] data = Files.readAllBytes(Paths.get(publicKey));
+        PublicKey result = KeyFormat.decodePublic(data);
+        Metrics.stop(Metrics.Phase.KEY_LOAD, start, data.length);
         return result;
     } 
 
 
     /**
-     * Возвращает объект {@link PrivateKey} содержащую закрытый ключ из файла {@code privateKey} 
+     * Возвращает объект {@link PrivateKey} содержащую закрытый ключ из файла {@code privateKey}.
+     * Формат файла ({@link KeyFormat}) определяется автоматически.
      * @param privateKey - путь до файла с закрытым ключом
      * @return Объект {@link PrivateKey} с закрытым ключом
      * @throws FileNotFoundException
      * @throws IOException
      */
     public static PrivateKey getPrivateKey(String privateKey) throws FileNotFoundException, IOException{
-        PrivateKey result = new PrivateKey();
-        try(BufferedReader in = new BufferedReader(new FileReader(privateKey));) {
-            String d = in.readLine();
-            String N = in.readLine();
-            result.d = new BigInteger(d);
-            result.N = new BigInteger(N);
-        }
-
+        long start = Metrics.start();
+        byte[] data = Files.readAllBytes(Paths.get(privateKey));
+        PrivateKey result = KeyFormat.decodePrivate(data);
+        Metrics.stop(Metrics.Phase.KEY_LOAD, start, data.length);
         return result;
     } 
 
+    /**
+     * Переписывает файл ключа в формате {@code format}. Тип ключа определяется по {@link KeyFormat#isPrivate}.
+     * @param source - путь до файла ключа
+     * @param target - путь до нового файла
+     * @param format - формат нового файла
+     * @return Отпечаток ключа
+     * @throws IOException
+     */
+    public static byte[] convertKey(String source, String target, KeyFormat format) throws IOException {
+        Path path = Paths.get(source);
+        byte[] data = Files.readAllBytes(path);
+        boolean isPrivate = KeyFormat.isPrivate(data, path.getFileName().toString());
+
+        byte[] fingerprint;
+        if (isPrivate) {
+            PrivateKey key = KeyFormat.decodePrivate(data);
+            data = format.encode(key);
+            fingerprint = key.fingerprint();
+        }
+        else {
+            PublicKey key = KeyFormat.decodePublic(data);
+            data = format.encode(key);
+            fingerprint = key.fingerprint();
+        }
+        Files.write(Paths.get(target), data);
+        return fingerprint;
+    }
+
 
     
     public static byte[] encrypt(BigInteger d, BigInteger N, byte[] source) {
@@ -262,6 +445,55 @@ public class SignRSA {
         return result.toByteArray();
     }
 
+    /**
+     * Подписывает {@code source} закрытым ключом. Если у ключа есть компоненты CRT, возведение в степень
+     * делается по модулям {@code p} и {@code q} (половинного размера) параллельно, результат собирается по Гарнеру.
+     * Иначе - обычное {@code modPow(d, N)}.
+     * </p> Результат CRT проверяется открытой экспонентой: подпись, испорченная сбоем в одной из половин,
+     * раскрывает множитель {@code N} (атака Bellcore). При несовпадении подпись считается заново без CRT.
+     * @param key - закрытый ключ
+     * @param source - хеш-сумма
+     * @return Подпись
+     */
+    public static byte[] encrypt(PrivateKey key, byte[] source) {
+        long start = Metrics.start();
+        byte[] result = modPow(key, source);
+        Metrics.stop(Metrics.Phase.RSA_SIGN, start);
+        Metrics.increment(Metrics.Counter.SIGNED);
+        return result;
+    }
+
+    /**
+     * Возведение в степень для {@link #encrypt(PrivateKey, byte[])} без замера
+     */
+    private static byte[] modPow(PrivateKey key, byte[] source) {
+        if (!key.hasCRT()) {
+            return ModExpEngine.isEnabled()
+                    ? key.engines()[0].modPow(source, 0, source.length)
+                    : encrypt(key.d, key.N, source);
+        }
+
+        BigInteger t = new BigInteger(1, source);
+        CompletableFuture<BigInteger> mP;
+        BigInteger mQ;
+        if (ModExpEngine.isEnabled()) {
+            ModExpEngine[] engines = key.engines();
+            mP = CompletableFuture.supplyAsync(() -> new BigInteger(1, engines[0].modPow(source, 0, source.length)));
+            mQ = new BigInteger(1, engines[1].modPow(source, 0, source.length));
+        }
+        else {
+            mP = CompletableFuture.supplyAsync(() -> t.mod(key.p).modPow(key.dP, key.p));
+            mQ = t.mod(key.q).modPow(key.dQ, key.q);
+        }
+
+        BigInteger h = key.qInv.multiply(mP.join().subtract(mQ)).mod(key.p);       // h = qInv * (mP - mQ) mod p
+        BigInteger result = mQ.add(h.multiply(key.q));                              // m = mQ + h * q
+        if (!result.modPow(key.publicExponent(), key.N).equals(t.mod(key.N))) {     // Сбой в одной половине выдал бы множитель N
+            return encrypt(key.d, key.N, source);
+        }
+        return result.toByteArray();
+    }
+
     
     public static BigInteger decrypt(BigInteger e, BigInteger N, byte[] source) {
         BigInteger t = new BigInteger(1, source); 
@@ -269,6 +501,21 @@ public class SignRSA {
         return result;
     }
 
+    /**
+     * Расшифровывает подпись {@code source} открытым ключом, через {@link ModExpEngine} ключа, если он включен
+     * @param key - открытый ключ
+     * @param source - подпись
+     * @return Расшифрованная хеш-сумма
+     */
+    public static BigInteger decrypt(PublicKey key, byte[] source) {
+        long start = Metrics.start();
+        BigInteger result = ModExpEngine.isEnabled()
+                ? new BigInteger(1, key.engine().modPow(source, 0, source.length))
+                : decrypt(key.e, key.N, source);
+        Metrics.stop(Metrics.Phase.RSA_VERIFY, start);
+        return result;
+    }
+
     /**
      * Переворачивает массив, переданный в качетсве параметра {@code arr} 
      * @param arr - исходный массив
@@ -291,100 +538,371 @@ public class SignRSA {
         }
     }
 
-    public static void signingFile(String filename, String privateKey) throws IOException, NoSuchAlgorithmException {
-        File f = new File(filename);
+    /**
+     * Приводит подпись к фиксированной длине {@code length} байт (big-endian, с ведущими нулями)
+     * @param value - подпись из {@link #encrypt}
+     * @param length - требуемая длина
+     * @return Подпись длиной ровно {@code length} байт
+     */
+    static byte[] toFixedLength(byte[] value, int length) {
+        int start = 0;
+        while (value.length - start > length && value[start] == 0) {        // Знаковый нулевой байт BigInteger
+            start++;
+        }
+        if (value.length - start > length) {
+            throw new IllegalArgumentException("Value does not fit in " + length + " bytes");
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(value, start, result, length - (value.length - start), value.length - start);
+        return result;
+    }
+
+    /**
+     * Собирает подпись версии 1 для дописывания в конец файла
+     * @param sizeOfFile - размер содержимого
+     * @param fingerprint - отпечаток ключа или {@code null}
+     * @param crypted - зашифрованная хеш-сумма из {@link #encrypt}
+     * @return Подпись из {@code SIZE_OF_SIGN} байт (и еще {@code SIZE_OF_FINGERPRINT} с отпечатком)
+     */
+    static byte[] buildSign(long sizeOfFile, byte[] fingerprint, byte[] crypted) {
+        ByteBuffer sign = allocateSign(SIZE_OF_SIGN, fingerprint);
+        sign.put(PERSONAL_SIGN.getBytes());                                 // Метка в начало
+        sign.putLong(sizeOfFile);                                           // Записываем исходный размер файла
+        return finishSign(sign, 1, fingerprint, crypted, PERSONAL_SIGN);
+    }
+
+    /**
+     * Собирает подпись версии 2 (корень дерева Меркла) для дописывания в конец файла
+     * @param sizeOfFile - размер содержимого
+     * @param chunkSize - размер куска
+     * @param fingerprint - отпечаток ключа или {@code null}
+     * @param crypted - зашифрованный корень из {@link #encrypt}
+     * @return Подпись из {@code SIZE_OF_SIGN_V2} байт (и еще {@code SIZE_OF_FINGERPRINT} с отпечатком)
+     */
+    static byte[] buildSignV2(long sizeOfFile, long chunkSize, byte[] fingerprint, byte[] crypted) {
+        ByteBuffer sign = allocateSign(SIZE_OF_SIGN_V2, fingerprint);
+        sign.put(PERSONAL_SIGN.getBytes());                                 // Метка в начало
+        sign.putLong(sizeOfFile);                                           // Исходный размер файла
+        sign.putLong(chunkSize);                                            // Размер куска
+        return finishSign(sign, 2, fingerprint, crypted, PERSONAL_SIGN_V2);
+    }
+
+    /**
+     * Собирает отдельный файл подписи (версия 3). Содержимое файла остается нетронутым.
+     * @param sizeOfFile - размер содержимого
+     * @param timestamp - время изменения содержимого в миллисекундах или {@link #NO_TIMESTAMP}
+     * @param fingerprint - отпечаток ключа или {@code null}
+     * @param crypted - зашифрованная хеш-сумма из {@link #detachedDigest}
+     * @return Подпись из {@code SIZE_OF_SIGN_DETACHED} байт (и еще {@code SIZE_OF_FINGERPRINT} с отпечатком)
+     */
+    static byte[] buildSignDetached(long sizeOfFile, long timestamp, byte[] fingerprint, byte[] crypted) {
+        ByteBuffer sign = allocateSign(SIZE_OF_SIGN_DETACHED, fingerprint);
+        sign.put(PERSONAL_SIGN.getBytes());                                 // Метка в начало
+        sign.putLong(sizeOfFile);                                           // Размер содержимого
+        sign.putLong(timestamp);                                            // Время изменения содержимого
+        return finishSign(sign, 3, fingerprint, crypted, PERSONAL_SIGN_DETACHED);
+    }
+
+    private static ByteBuffer allocateSign(int sizeOfSign, byte[] fingerprint) {
+        return ByteBuffer.allocate(sizeOfSign + (fingerprint != null ? SIZE_OF_FINGERPRINT : 0));
+    }
+
+    /**
+     * Дописывает в подпись отпечаток ключа (если есть), хеш-сумму и конечную метку
+     */
+    private static byte[] finishSign(ByteBuffer sign, int version, byte[] fingerprint, byte[] crypted, String endSign) {
+        if (fingerprint != null) {
+            sign.put(toFixedLength(fingerprint, SIZE_OF_FINGERPRINT));      // Отпечаток ключа
+            endSign = PERSONAL_SIGN_KEYED + version;                        // Метка подписи с отпечатком
+        }
+        sign.put(toFixedLength(crypted, SIZE_OF_CRYPTED));                  // Заносим подпись
+        sign.put(endSign.getBytes());                                       // Метка в конец
+        return sign.array();
+    }
+
+    /**
+     * Хеш-сумма, которая подписывается в отдельном файле подписи:
+     * {@code SHA-256(SHA-256(содержимое) || размер || время изменения)}.
+     * Размер и время изменения записаны в подписи открыто, поэтому тоже входят в подписанные данные.
+     * @param content - хеш-сумма содержимого
+     * @param sizeOfFile - размер содержимого
+     * @param timestamp - время изменения или {@link #NO_TIMESTAMP}
+     * @return Хеш-сумма для подписи
+     */
+    static byte[] detachedDigest(byte[] content, long sizeOfFile, long timestamp) throws NoSuchAlgorithmException {
+        Hasher hasher = DigestProvider.current().newHasher();
+        hasher.update(content);
+        hasher.update(ByteBuffer.allocate(Long.BYTES * 2).putLong(sizeOfFile).putLong(timestamp).flip());
+        return hasher.digest();
+    }
 
-        PrivateKey key = SignRSA.getPrivateKey(privateKey);
-        int sizeOfFile = (int)SignRSA.getSizeOfFile(filename);
-        byte[] sourceSHA = SignRSA.getFileSHA256(f, sizeOfFile);
-        byte[] cryptedSHA = SignRSA.encrypt(key.d, key.N, sourceSHA);
+    /**
+     * Читает хвост файла одним позиционным чтением: столько байт, сколько занимает самая длинная подпись
+     * @param channel - открытый канал файла
+     * @param sizeOfFile - размер файла
+     * @return Буфер с хвостом файла
+     * @throws IOException
+     */
+    private static ByteBuffer readTail(FileChannel channel, long sizeOfFile) throws IOException {
+        long start = Metrics.start();
+        int length = (int)Math.min(sizeOfFile, MAX_SIZE_OF_SIGN);
+        ByteBuffer tail = ByteBuffer.allocate(length);
+        long position = sizeOfFile - length;
+        while (tail.hasRemaining()) {
+            if (channel.read(tail, position + tail.position()) < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+        }
+        Metrics.stop(Metrics.Phase.READ, start, length);
+        return tail.flip();
+    }
 
-        try (FileOutputStream out = new FileOutputStream(f, true)) {
-            out.write(PERSONAL_SIGN.getBytes());                             // Метка в начало
+    /**
+     * Читает отдельный файл подписи целиком
+     * @param channel - открытый канал файла
+     * @return Буфер с подписью или {@code null}, если это не отдельный файл подписи
+     * @throws IOException
+     */
+    static ByteBuffer readDetachedSign(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (!isDetachedSize(size)) {
+            return null;
+        }
+        ByteBuffer sign = readTail(channel, size);
+        return getSignVersion(sign) == 3 ? sign : null;
+    }
 
-            ByteBuffer size = ByteBuffer.allocate(8).putLong(sizeOfFile).position(0);
-            out.write(size.array());                                        // Записываем исходный размер файла
-            out.write(cryptedSHA);                                          // Заносим подпись
-            out.write(PERSONAL_SIGN.getBytes());                            // Метка в конец
-            out.close();
+    /**
+     * Может ли файл размером {@code size} быть отдельным файлом подписи
+     */
+    static boolean isDetachedSize(long size) {
+        return size == SIZE_OF_SIGN_DETACHED || size == SIZE_OF_SIGN_DETACHED + SIZE_OF_FINGERPRINT;
+    }
 
-            StringBuffer buff = new StringBuffer(f.getName());
-            buff.append(".sig");
-            f.renameTo(new File(buff.toString()));
+    /**
+     * Определяет версию подписи по конечной метке
+     * @param tail - хвост файла
+     * @return 2 для подписи с деревом Меркла, 3 для отдельного файла подписи, иначе 1
+     */
+    private static int getSignVersion(ByteBuffer tail) {
+        String end = getEndMarker(tail);
+        if (end.startsWith(PERSONAL_SIGN_KEYED) && end.length() == PERSONAL_SIGN_KEYED.length() + 1) {
+            int version = end.charAt(PERSONAL_SIGN_KEYED.length()) - '0';
+            return version >= 1 && version <= 3 ? version : 1;
         }
-        catch (Exception e) {
-            System.out.println("Something went wrong! The file could not be signed.");
-            return;
+        return end.equals(PERSONAL_SIGN_V2) ? 2 : end.equals(PERSONAL_SIGN_DETACHED) ? 3 : 1;
+    }
+
+    private static String getEndMarker(ByteBuffer tail) {
+        byte[] marker = new byte[PERSONAL_SIGN_V2.length()];
+        if (tail.remaining() < marker.length) {
+            return "";
         }
+        tail.get(tail.limit() - marker.length, marker);
+        return new String(marker);
+    }
 
-        System.out.println("The file is signed succesfully.");
 
+    /**
+     * Разобранная подпись из конца файла
+     */
+    static class Sign {
+        int version;                // Версия подписи (1, 2 или 3 - отдельный файл)
+        long content;               // Размер файла до подписи
+        long chunkSize;             // Размер куска для версии 2
+        long timestamp;             // Время изменения содержимого для версии 3
+        byte[] fingerprint;         // Отпечаток ключа или null для подписи без него
+        byte[] crypted;             // Зашифрованная хеш-сумма
+        BigInteger expected;        // Ожидаемая хеш-сумма или корень дерева, расшифрованные открытым ключом
+    }
+
+    /**
+     * Читает и проверяет подпись в конце файла, не трогая содержимое.
+     * Испорченный или неподписанный файл отсекается за одно позиционное чтение.
+     * @param channel - открытый канал файла
+     * @param sizeOfFile - размер файла
+     * @param key - открытый ключ
+     * @return Разобранная подпись
+     * @throws IncorrectSignException - если подпись не разобрана
+     * @throws IOException
+     * @see #parseSign
+     */
+    static Sign readSign(FileChannel channel, long sizeOfFile, PublicKey key) throws IncorrectSignException, IOException {
+        return parseSign(readTail(channel, sizeOfFile), sizeOfFile, key);
     }
 
+    /**
+     * Читает подпись в конце файла, не расшифровывая ее (ключ выбирается по отпечатку позже)
+     * @see #parseSign(ByteBuffer, long)
+     */
+    static Sign readSign(FileChannel channel, long sizeOfFile) throws IncorrectSignException, IOException {
+        return parseSign(readTail(channel, sizeOfFile), sizeOfFile);
+    }
 
-    public static void checkSign(String filename, String publicKey) throws IOException, NoSuchAlgorithmException {
-        File f = new File(filename);
+    /**
+     * Разбирает подпись по хвосту данных и расшифровывает ее ключом {@code key}
+     * @see #parseSign(ByteBuffer, long)
+     * @see #openSign
+     */
+    static Sign parseSign(ByteBuffer tail, long sizeOfFile, PublicKey key) throws IncorrectSignException {
+        Sign sign = parseSign(tail, sizeOfFile);
+        openSign(sign, key);
+        return sign;
+    }
 
-        PublicKey key = SignRSA.getPublicKey(publicKey);
-        int content = (int)SignRSA.getSizeOfFile(filename) - SIZE_OF_SIGN;                   // Размер файла до подписи
+    /**
+     * Разбирает подпись по хвосту данных: обе метки, размер, размер куска и отпечаток ключа.
+     * Хеш-сумма не расшифровывается, см. {@link #openSign}.
+     * </p> Для версии 3 данные - это весь отдельный файл подписи, размер содержимого берется из самой подписи.
+     * @param tail - последние байты данных (от позиции до предела буфера), не меньше длины подписи
+     * @param sizeOfFile - полный размер данных вместе с подписью
+     * @return Разобранная подпись
+     * @throws IncorrectSignException - если подпись не разобрана
+     */
+    static Sign parseSign(ByteBuffer tail, long sizeOfFile) throws IncorrectSignException {
+        ByteBuffer in = tail.duplicate();
+        Sign sign = new Sign();
+        sign.version = getSignVersion(in);
+        boolean keyed = getEndMarker(in).startsWith(PERSONAL_SIGN_KEYED);
+        int sizeOfSign = (sign.version == 2 ? SIZE_OF_SIGN_V2 : sign.version == 3 ? SIZE_OF_SIGN_DETACHED : SIZE_OF_SIGN)
+                + (keyed ? SIZE_OF_FINGERPRINT : 0);
+        String endSign = keyed ? PERSONAL_SIGN_KEYED + sign.version
+                : sign.version == 2 ? PERSONAL_SIGN_V2 : sign.version == 3 ? PERSONAL_SIGN_DETACHED : PERSONAL_SIGN;
+        sign.content = sizeOfFile - sizeOfSign;                                             // Размер файла до подписи
+
+        if (sign.content < 0 || in.remaining() < sizeOfSign) {
+            throw new IncorrectSignException("Failed to detect start of sign ");
+        }
+        if (sign.version == 3 && sign.content != 0) {                                      // Отдельный файл содержит только подпись
+            throw new IncorrectSignException("Detached sign file has unexpected size");
+        }
 
-        byte[] sourceSHA = SignRSA.getFileSHA256(f, content);                           // Исходный SHA256
+        in.position(in.limit() - sizeOfSign);
 
-        try (FileInputStream in = new FileInputStream(f);
-             RandomAccessFile target = new RandomAccessFile(f, "rwd");
-            ) {
-            if (content < 0) {
-                throw new IncorrectSignException("Failed to detect start of sign ");
-            }
-            in.skip(content);
-            
-            String personalSign = new String(in.readNBytes(PERSONAL_SIGN.getBytes().length));    
-            if (!personalSign.equals(PERSONAL_SIGN)) {
-                throw new IncorrectSignException("Failed to find start of sign");
-            }
+        byte[] marker = new byte[PERSONAL_SIGN.length()];
+        in.get(marker);
+        if (!new String(marker).equals(PERSONAL_SIGN)) {
+            throw new IncorrectSignException("Failed to find start of sign");
+        }
 
-            ByteBuffer size = ByteBuffer.allocate(8);                                       
-            size.put(in.readNBytes(8)).position(0);
-            if (size.getLong() != content) {
+        if (sign.version == 3) {
+            sign.content = in.getLong();                                                    // Размер файла с содержимым
+            sign.timestamp = in.getLong();
+            if (sign.content < 0) {
                 throw new IncorrectSignException("File size mismatch detected");
             }
+        }
+        else if (in.getLong() != sign.content) {
+            throw new IncorrectSignException("File size mismatch detected");
+        }
 
-            byte[] temp = in.readNBytes(256);
-            BigInteger decryptedSHA = SignRSA.decrypt(key.e, key.N, temp);
+        if (sign.version == 2) {
+            sign.chunkSize = in.getLong();
+            try {
+                MerkleHash.checkChunkSize(sign.content, sign.chunkSize);
+            }
+            catch (IllegalArgumentException e) {
+                throw new IncorrectSignException("Incorrect chunk size in sign: " + e.getMessage());
+            }
+        }
 
-            BigInteger HASH_A = new BigInteger(1, sourceSHA);
-            BigInteger HASH_B = decryptedSHA;
+        if (keyed) {
+            sign.fingerprint = new byte[SIZE_OF_FINGERPRINT];
+            in.get(sign.fingerprint);
+        }
 
-            if(!HASH_A.equals(HASH_B)){
-                throw new IncorrectSignException("Hash sum is not equals");
-            }
+        sign.crypted = new byte[SIZE_OF_CRYPTED];
+        in.get(sign.crypted);
 
-            personalSign = new String(in.readNBytes(PERSONAL_SIGN.getBytes().length));           
-            if (!personalSign.equals(PERSONAL_SIGN)) {
-                throw new IncorrectSignException("Failed to find end of sign");
-            }
+        marker = new byte[endSign.length()];
+        in.get(marker);
+        if (!new String(marker).equals(endSign)) {
+            throw new IncorrectSignException("Failed to find end of sign");
+        }
 
-            if (in.available() != 0) {
-                throw new IncorrectSignException("Failed to find end of sign");
-            }
+        return sign;
+    }
 
-            System.out.println("Sign and File has not been modified.");
-            
-            target.setLength(content);                                                      // Возвращаем исходный размер файла
+    /**
+     * Расшифровывает хеш-сумму подписи открытым ключом
+     * @param sign - разобранная подпись
+     * @param key - открытый ключ
+     * @throws IncorrectSignException - если расшифрованное значение не похоже на хеш-сумму
+     */
+    static void openSign(Sign sign, PublicKey key) throws IncorrectSignException {
+        sign.expected = SignRSA.decrypt(key, sign.crypted);
+        if (sign.expected.bitLength() > SHA256.DIGEST_SIZE * 8) {                          // Не хеш-сумма - ключ не тот или подпись испорчена
+            throw new IncorrectSignException("Hash sum is not equals");
+        }
+    }
 
-            in.close();
-            target.close();
-            StringBuffer buff = new StringBuffer(f.getName());
-            f.renameTo(new File(buff.subSequence(0, f.getName().length() - 4).toString()));
+    /**
+     * Восстанавливает исходный файл: копирует первые {@code content} байт во временный файл рядом
+     * и атомарно переносит его на имя без расширения {@code .sig}. Подписанный файл удаляется
+     * только после переноса, поэтому при сбое на диске остается либо он, либо целый исходный файл.
+     * </p> Права, владелец и времена файла переносятся с подписанного файла, см. {@link #copyAttributes}.
+     * @param source - открытый на чтение канал подписанного файла
+     * @param path - путь до подписанного файла
+     * @param content - размер содержимого без подписи
+     * @return Путь до восстановленного файла
+     * @throws IOException
+     */
+    static Path stripSign(FileChannel source, Path path, long content) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        String name = absolute.getFileName().toString();
+        Path target = name.endsWith(".sig") ? absolute.resolveSibling(name.substring(0, name.length() - 4)) : absolute;
+
+        Path temp = Files.createTempFile(absolute.getParent(), name, ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                long position = 0;
+                while (position < content) {
+                    position += source.transferTo(position, content - position, out);
+                }
+                out.force(true);                                                            // Содержимое на диске до переноса
+            }
+            copyAttributes(absolute, temp);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
         }
-        catch (IncorrectSignException e) {
-            System.out.println(e.getMessage());
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
         }
-        catch (Exception e) {
-            e.printStackTrace();
+        if (!target.equals(absolute)) {
+            Files.delete(absolute);
         }
-        
+        return target;
     }
 
+    /**
+     * Копирует владельца, права доступа и времена файла {@code from} на {@code to}.
+     * Смена владельца доступна не всем, поэтому ее ошибка пропускается: файл остается у текущего пользователя.
+     * @param from - исходный файл
+     * @param to - файл, которому назначаются атрибуты
+     * @throws IOException
+     */
+    static void copyAttributes(Path from, Path to) throws IOException {
+        PosixFileAttributeView posix = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+        BasicFileAttributes attributes;
+        if (posix != null) {
+            PosixFileAttributes source = Files.readAttributes(from, PosixFileAttributes.class);
+            try {
+                posix.setOwner(source.owner());
+                posix.setGroup(source.group());
+            }
+            catch (IOException e) {
+                // Не владелец и не root - остаются владелец и группа по умолчанию
+            }
+            posix.setPermissions(source.permissions());                                     // После chown, который сбрасывает setuid
+            attributes = source;
+        }
+        else {
+            attributes = Files.readAttributes(from, BasicFileAttributes.class);
+        }
+        Files.getFileAttributeView(to, BasicFileAttributeView.class)
+             .setTimes(attributes.lastModifiedTime(), attributes.lastAccessTime(), attributes.creationTime());
+    }
+
+
     
 }
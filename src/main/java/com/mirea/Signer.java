@@ -0,0 +1,322 @@
+package com.mirea;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.mirea.SignRSA.KeyPair.PrivateKey;
+
+/**
+ * Подпись данных одним закрытым ключом.
+ * </p> Ключ разбирается один раз при создании, объект неизменяем и безопасен для использования из нескольких потоков.
+ * </p> Методы {@code sign} возвращают подпись (версии 1, если не сказано иное) для дописывания в конец данных.
+ * В каждую подпись записывается отпечаток ключа, по которому {@link Verifier} выбирает ключ из {@link Keyring}.
+ */
+public final class Signer {
+
+    private static final int BUFFER_SIZE = 64 * 1024;                       // Размер буфера для чтения потока
+
+    private final PrivateKey key;
+    private final byte[] fingerprint;                                       // Отпечаток ключа для подписи
+
+    Signer(PrivateKey key) {
+        this.key = key;
+        this.fingerprint = key.fingerprint();
+    }
+
+    /**
+     * Создает подписывающий объект из файла с закрытым ключом
+     * @param privateKey - путь до файла с закрытым ключом
+     * @return Подписывающий объект
+     * @throws IOException
+     */
+    public static Signer fromKeyFile(String privateKey) throws IOException {
+        return new Signer(SignRSA.getPrivateKey(privateKey));
+    }
+
+    /**
+     * Подписывает уже посчитанную хеш-сумму содержимого
+     * @param contentSize - размер содержимого
+     * @param digest - хеш-сумма содержимого
+     * @return Подпись
+     */
+    public byte[] signDigest(long contentSize, byte[] digest) {
+        return SignRSA.buildSign(contentSize, fingerprint, SignRSA.encrypt(key, digest));
+    }
+
+    /**
+     * Подписывает массив {@code content} целиком
+     * @param content - данные
+     * @return Подпись
+     */
+    public byte[] sign(byte[] content) throws NoSuchAlgorithmException {
+        return sign(ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Подписывает оставшиеся байты буфера. Позиция буфера не меняется.
+     * @param content - данные
+     * @return Подпись
+     */
+    public byte[] sign(ByteBuffer content) throws NoSuchAlgorithmException {
+        Hasher hasher = DigestProvider.current().newHasher();
+        long size = content.remaining();
+        hasher.update(content.duplicate());
+        return signDigest(size, hasher.digest());
+    }
+
+    /**
+     * Подписывает поток до конца, читая его через буфер фиксированного размера. Поток не закрывается.
+     * @param in - поток данных
+     * @return Подпись
+     * @throws IOException
+     */
+    public byte[] sign(InputStream in) throws IOException, NoSuchAlgorithmException {
+        Hasher hasher = DigestProvider.current().newHasher();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long size = 0;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            hasher.update(buffer, 0, n);
+            size += n;
+        }
+        return signDigest(size, hasher.digest());
+    }
+
+    /**
+     * Подписывает поток для конвейера: содержимое копируется в {@code out} через буфер фиксированного размера
+     * и одновременно хешируется, в конце в {@code out} дописывается подпись. Размер заранее не нужен:
+     * подпись пишется после содержимого. Потоки не закрываются, {@code out} сбрасывается.
+     * @param in - поток данных
+     * @param out - поток для данных с подписью
+     * @return Подпись
+     * @throws IOException
+     */
+    public byte[] sign(InputStream in, OutputStream out) throws IOException, NoSuchAlgorithmException {
+        Hasher hasher = DigestProvider.current().newHasher();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long size = 0;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            hasher.update(buffer, 0, n);
+            out.write(buffer, 0, n);
+            size += n;
+        }
+        byte[] sign = signDigest(size, hasher.digest());
+        out.write(sign);
+        out.flush();
+        return sign;
+    }
+
+    /**
+     * Подписывает все содержимое открытого канала, читая его способом {@link ReadMode#current()}
+     * @param channel - канал файла
+     * @return Подпись
+     * @throws IOException
+     */
+    public byte[] sign(FileChannel channel) throws IOException, NoSuchAlgorithmException {
+        Hasher hasher = DigestProvider.current().newHasher();
+        long size = channel.size();
+        ReadMode.current().hash(channel, 0, size, hasher);
+        return signDigest(size, hasher.digest());
+    }
+
+    /**
+     * Подписывает все содержимое открытого канала подписью версии 2 (корень дерева Меркла)
+     * @param channel - канал файла
+     * @param chunkSize - размер куска
+     * @return Подпись версии 2
+     * @throws IOException
+     * @throws IllegalArgumentException - если размер куска вне допустимого диапазона, см. {@link MerkleHash#checkChunkSize}
+     * @see MerkleHash
+     */
+    public byte[] signMerkle(FileChannel channel, long chunkSize) throws IOException, NoSuchAlgorithmException {
+        long size = channel.size();
+        MerkleHash.checkChunkSize(size, chunkSize);                         // Проверяющий отвергнет такую подпись
+        byte[] root = MerkleHash.getRoot(channel, size, chunkSize);
+        return SignRSA.buildSignV2(size, chunkSize, fingerprint, SignRSA.encrypt(key, root));
+    }
+
+    /**
+     * Подписывает все содержимое открытого канала отдельной подписью (версия 3), содержимое не изменяется
+     * @param channel - канал файла
+     * @param timestamp - время изменения содержимого в миллисекундах или {@link SignRSA#NO_TIMESTAMP}
+     * @return Отдельная подпись для записи в файл {@code *.sig}
+     * @throws IOException
+     */
+    public byte[] signDetached(FileChannel channel, long timestamp) throws IOException, NoSuchAlgorithmException {
+        Hasher hasher = DigestProvider.current().newHasher();
+        long size = channel.size();
+        ReadMode.current().hash(channel, 0, size, hasher);
+        byte[] digest = SignRSA.detachedDigest(hasher.digest(), size, timestamp);
+        return SignRSA.buildSignDetached(size, timestamp, fingerprint, SignRSA.encrypt(key, digest));
+    }
+
+    /**
+     * Записывает рядом с файлом отдельную подпись {@code <файл>.sig}. Сам файл только читается.
+     * Подпись пишется во временный файл и атомарно переносится на место.
+     * @param path - путь до файла
+     * @param timestamp - записать в подпись время изменения файла
+     * @return Путь до файла подписи
+     * @throws IOException
+     */
+    public Path signFileDetached(Path path, boolean timestamp) throws IOException, NoSuchAlgorithmException {
+        byte[] sign;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long modified = timestamp ? Files.getLastModifiedTime(path).toMillis() : SignRSA.NO_TIMESTAMP;
+            sign = signDetached(channel, modified);
+        }
+
+        return writeAtomically(path.resolveSibling(path.getFileName() + ".sig"), sign);
+    }
+
+    /**
+     * Как {@link #signFileDetached}, но для файла, который только дописывается: рядом хранится точка
+     * продолжения хеширования {@code <файл>.ckpt} ({@link HashCheckpoint}). Если префикс файла, покрытый точкой,
+     * не изменился, хешируется только дописанный с прошлой подписи хвост, иначе файл хешируется целиком.
+     * </p> Хеширование идет встроенной реализацией {@link SHA256}: только она умеет выгружать состояние.
+     * @param path - путь до файла
+     * @param timestamp - записать в подпись время изменения файла
+     * @return Путь до файла подписи
+     * @throws IOException
+     */
+    public Path signFileIncremental(Path path, boolean timestamp) throws IOException, NoSuchAlgorithmException {
+        Path checkpointPath = HashCheckpoint.pathFor(path);
+        byte[] sign;
+        HashCheckpoint next;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long modified = timestamp ? Files.getLastModifiedTime(path).toMillis() : SignRSA.NO_TIMESTAMP;
+            long size = channel.size();
+
+            SHA256 hasher = new SHA256();
+            HashCheckpoint checkpoint = HashCheckpoint.load(checkpointPath);
+            if (checkpoint != null && checkpoint.getOffset() <= size && checkpoint.matches(channel, path)) {
+                hasher.importState(checkpoint.getState());                  // Префикс не изменился - продолжаем
+            }
+
+            long boundary = size - size % SHA256.BLOCK_SIZE;                // Новая точка - на последней границе блока
+            ReadMode.current().hash(channel, hasher.getCount(), boundary - hasher.getCount(), hasher);
+            next = HashCheckpoint.create(channel, path, boundary, hasher.exportState());
+            ReadMode.current().hash(channel, boundary, size - boundary, hasher);
+
+            byte[] digest = SignRSA.detachedDigest(hasher.digest(), size, modified);
+            sign = SignRSA.buildSignDetached(size, modified, fingerprint, SignRSA.encrypt(key, digest));
+        }
+
+        Path result = writeAtomically(path.resolveSibling(path.getFileName() + ".sig"), sign);
+        next.save(checkpointPath);
+        return result;
+    }
+
+    /**
+     * Записывает {@code data} во временный файл рядом с {@code target} и атомарно переносит его на место.
+     * </p> Файл создается с правами по умолчанию (с учетом umask), а не 0600 как у {@code Files.createTempFile}:
+     * отдельную подпись и манифест должны читать и другие пользователи.
+     * @param target - путь до файла
+     * @param data - содержимое
+     * @return {@code target}
+     * @throws IOException
+     */
+    static Path writeAtomically(Path target, byte[] data) throws IOException {
+        long start = Metrics.start();
+        Path absolute = target.toAbsolutePath();
+        Path temp = createTemp(absolute);
+        try {
+            Files.write(temp, data);
+            Path result = Files.move(temp, absolute, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Metrics.stop(Metrics.Phase.WRITE, start, data.length);
+            return result;
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Создает пустой временный файл со случайным именем рядом с {@code target} и правами по умолчанию
+     * @param target - абсолютный путь до файла
+     * @return Путь до временного файла
+     * @throws IOException
+     */
+    private static Path createTemp(Path target) throws IOException {
+        while (true) {
+            Path temp = target.resolveSibling(target.getFileName() + "." + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                return Files.createFile(temp);
+            }
+            catch (FileAlreadyExistsException e) {
+                // Имя занято - пробуем другое
+            }
+        }
+    }
+
+    /**
+     * Дописывает подпись в конец файла и переименовывает его в {@code *.sig}
+     * @param path - путь до файла
+     * @return Путь до подписанного файла
+     * @throws IOException
+     */
+    public Path signFile(Path path) throws IOException, NoSuchAlgorithmException {
+        byte[] sign;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            sign = sign(channel);
+        }
+        return appendSign(path, sign);
+    }
+
+    /**
+     * Дописывает подпись версии 2 в конец файла и переименовывает его в {@code *.sig}
+     * @param path - путь до файла
+     * @param chunkSize - размер куска
+     * @return Путь до подписанного файла
+     * @throws IOException
+     */
+    public Path signFileMerkle(Path path, long chunkSize) throws IOException, NoSuchAlgorithmException {
+        byte[] sign;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            sign = signMerkle(channel, chunkSize);
+        }
+        return appendSign(path, sign);
+    }
+
+    /**
+     * Переименовывает файл в {@code *.sig}, заменяя существующий, и дописывает подпись {@code sign} в конец.
+     * </p> Файл сначала переносится, поэтому при ошибке исходный файл не остается с подписью:
+     * дописанное обрезается, и файл возвращается на место.
+     * @param path - путь до файла
+     * @param sign - подпись
+     * @return Путь до подписанного файла
+     * @throws IOException
+     */
+    static Path appendSign(Path path, byte[] sign) throws IOException {
+        long start = Metrics.start();
+        Path signed = path.resolveSibling(path.getFileName() + ".sig");
+        Files.move(path, signed, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel channel = FileChannel.open(signed, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(sign);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, size + buffer.position());
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                channel.truncate(size);
+                Files.move(signed, path, StandardCopyOption.ATOMIC_MOVE);
+                throw e;
+            }
+        }
+        Metrics.stop(Metrics.Phase.WRITE, start, sign.length);
+        return signed;
+    }
+}
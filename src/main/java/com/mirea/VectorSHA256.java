@@ -0,0 +1,167 @@
+package com.mirea;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Многобуферный {@code SHA-256} на Vector API: в каждой дорожке вектора хешируется свое сообщение.
+ * </p> Класс использует инкубаторный модуль {@code jdk.incubator.vector} и загружается только
+ * из {@link SHA256#getHashes(byte[][])}, когда модуль подключен.
+ */
+final class VectorSHA256 {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    private VectorSHA256() {}
+
+    static int lanes() {
+        return LANES;
+    }
+
+    /**
+     * Размер сообщения вместе с дополнением в блоках
+     * @param length - размер сообщения в байтах
+     * @return Количество блоков
+     */
+    private static int blocks(int length) {
+        return (length + 1 + Long.BYTES + SHA256.BLOCK_SIZE - 1) / SHA256.BLOCK_SIZE;
+    }
+
+    /**
+     * Дополняет сообщение: единичный бит, нули и размер в битах
+     * @param content - сообщение
+     * @return Дополненное сообщение кратное 64 байтам
+     */
+    private static byte[] pad(byte[] content) {
+        byte[] result = Arrays.copyOf(content, blocks(content.length) * SHA256.BLOCK_SIZE);
+        result[content.length] = (byte)0x80;
+        long bitLength = (long)content.length * 8;
+        for(int i = 0; i < Long.BYTES; i++) {
+            result[result.length - 1 - i] = (byte)(bitLength >>> (8 * i));
+        }
+        return result;
+    }
+
+    /**
+     * Высчитываем хеш-суммы набора сообщений. Сообщения сортируются по числу блоков
+     * и группируются по {@link #LANES}, чтобы дорожки одной группы заканчивались почти одновременно.
+     * @param contents - сообщения
+     * @return Хеш-суммы в исходном порядке
+     */
+    static byte[][] getHashes(byte[][] contents) {
+        Integer[] order = new Integer[contents.length];
+        for(int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> contents[i].length));
+
+        byte[][] result = new byte[contents.length][];
+        int[] state = new int[8 * LANES];
+        int[] w = new int[64 * LANES];
+        byte[][] padded = new byte[LANES][];
+        int[] blocks = new int[LANES];
+        boolean[] active = new boolean[LANES];
+
+        for(int from = 0; from < order.length; from += LANES) {
+            int count = Math.min(LANES, order.length - from);
+            int maxBlocks = 0;
+            for(int lane = 0; lane < LANES; lane++) {
+                padded[lane] = lane < count ? pad(contents[order[from + lane]]) : null;
+                blocks[lane] = lane < count ? padded[lane].length / SHA256.BLOCK_SIZE : 0;
+                maxBlocks = Math.max(maxBlocks, blocks[lane]);
+            }
+
+            for(int i = 0; i < 8; i++) {
+                Arrays.fill(state, i * LANES, (i + 1) * LANES, SHA256.H0[i]);
+            }
+
+            for(int b = 0; b < maxBlocks; b++) {
+                for(int lane = 0; lane < LANES; lane++) {
+                    active[lane] = b < blocks[lane];
+                    for(int t = 0; t < 16; t++) {                           // Транспонируем: слово t всех дорожек подряд
+                        w[t * LANES + lane] = active[lane] ? SHA256.readWord(padded[lane], b * SHA256.BLOCK_SIZE + t * 4) : 0;
+                    }
+                }
+                compress(state, w, VectorMask.fromArray(SPECIES, active, 0));
+            }
+
+            int[] h = new int[8];
+            for(int lane = 0; lane < count; lane++) {
+                for(int i = 0; i < 8; i++) {
+                    h[i] = state[i * LANES + lane];
+                }
+                result[order[from + lane]] = SHA256.convertToBytes(h);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Цикл сжатия одного блока во всех дорожках сразу.
+     * Состояние дорожек, у которых блоки закончились ({@code active} = false), не меняется.
+     * @param state - состояние, 8 слов по {@link #LANES} дорожек
+     * @param w - расписание сообщения, первые 16 слов заполнены
+     * @param active - дорожки, для которых блок существует
+     */
+    private static void compress(int[] state, int[] w, VectorMask<Integer> active) {
+        for(int j = 16; j < 64; j++) {
+            IntVector w15 = IntVector.fromArray(SPECIES, w, (j - 15) * LANES);
+            IntVector w2 = IntVector.fromArray(SPECIES, w, (j - 2) * LANES);
+            IntVector s0 = w15.lanewise(VectorOperators.ROR, 7)
+                    .lanewise(VectorOperators.XOR, w15.lanewise(VectorOperators.ROR, 18))
+                    .lanewise(VectorOperators.XOR, w15.lanewise(VectorOperators.LSHR, 3));
+            IntVector s1 = w2.lanewise(VectorOperators.ROR, 17)
+                    .lanewise(VectorOperators.XOR, w2.lanewise(VectorOperators.ROR, 19))
+                    .lanewise(VectorOperators.XOR, w2.lanewise(VectorOperators.LSHR, 10));
+
+            IntVector.fromArray(SPECIES, w, (j - 16) * LANES)
+                    .add(s0)
+                    .add(IntVector.fromArray(SPECIES, w, (j - 7) * LANES))
+                    .add(s1)
+                    .intoArray(w, j * LANES);
+        }
+
+        IntVector a = IntVector.fromArray(SPECIES, state, 0);
+        IntVector b = IntVector.fromArray(SPECIES, state, LANES);
+        IntVector c = IntVector.fromArray(SPECIES, state, 2 * LANES);
+        IntVector d = IntVector.fromArray(SPECIES, state, 3 * LANES);
+        IntVector e = IntVector.fromArray(SPECIES, state, 4 * LANES);
+        IntVector f = IntVector.fromArray(SPECIES, state, 5 * LANES);
+        IntVector g = IntVector.fromArray(SPECIES, state, 6 * LANES);
+        IntVector h = IntVector.fromArray(SPECIES, state, 7 * LANES);
+
+        for(int j = 0; j < 64; j++) {
+            IntVector S1 = e.lanewise(VectorOperators.ROR, 6)
+                    .lanewise(VectorOperators.XOR, e.lanewise(VectorOperators.ROR, 11))
+                    .lanewise(VectorOperators.XOR, e.lanewise(VectorOperators.ROR, 25));
+            IntVector ch = e.and(f).lanewise(VectorOperators.XOR, e.not().and(g));
+            IntVector temp1 = h.add(S1).add(ch).add(SHA256.k[j]).add(IntVector.fromArray(SPECIES, w, j * LANES));
+            IntVector S0 = a.lanewise(VectorOperators.ROR, 2)
+                    .lanewise(VectorOperators.XOR, a.lanewise(VectorOperators.ROR, 13))
+                    .lanewise(VectorOperators.XOR, a.lanewise(VectorOperators.ROR, 22));
+            IntVector maj = a.and(b).lanewise(VectorOperators.XOR, a.and(c)).lanewise(VectorOperators.XOR, b.and(c));
+            IntVector temp2 = S0.add(maj);
+
+            h = g;
+            g = f;
+            f = e;
+            e = d.add(temp1);
+            d = c;
+            c = b;
+            b = a;
+            a = temp1.add(temp2);
+        }
+
+        IntVector[] result = { a, b, c, d, e, f, g, h };
+        for(int i = 0; i < 8; i++) {
+            IntVector old = IntVector.fromArray(SPECIES, state, i * LANES);
+            old.blend(old.add(result[i]), active).intoArray(state, i * LANES);
+        }
+    }
+}
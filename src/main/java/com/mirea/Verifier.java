@@ -0,0 +1,347 @@
+package com.mirea;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import com.mirea.SignRSA.IncorrectSignException;
+import com.mirea.SignRSA.KeyPair.PublicKey;
+import com.mirea.SignRSA.Sign;
+
+/**
+ * Проверка подписанных данных одним открытым ключом.
+ * </p> Ключ разбирается один раз при создании, объект неизменяем и безопасен для использования из нескольких потоков.
+ * </p> Вместо одного ключа можно передать {@link Keyring}: ключ выбирается по отпечатку в подписи.
+ * </p> Сначала разбирается подпись в конце данных, содержимое хешируется только если она корректна.
+ * Данные не изменяются.
+ */
+public final class Verifier {
+
+    private static final int BUFFER_SIZE = 64 * 1024;                       // Размер буфера для чтения потока
+    private static final String DETACHED_MESSAGE = "Detached sign: verify the signed file itself";
+
+    private final PublicKey key;            // Единственный ключ или null, если ключ выбирается из набора
+    private final byte[] fingerprint;
+    private final Keyring keyring;
+
+    Verifier(PublicKey key) {
+        this.key = key;
+        this.fingerprint = key.fingerprint();
+        this.keyring = null;
+    }
+
+    /**
+     * Создает проверяющий объект, который выбирает ключ из набора по отпечатку в подписи
+     * @param keyring - набор открытых ключей
+     */
+    public Verifier(Keyring keyring) {
+        this.key = null;
+        this.fingerprint = null;
+        this.keyring = keyring;
+    }
+
+    /**
+     * Создает проверяющий объект из файла с открытым ключом или из каталога с файлами {@code PublicKey*}
+     * @param publicKey - путь до файла с открытым ключом или до каталога ключей
+     * @return Проверяющий объект
+     * @throws IOException
+     */
+    public static Verifier fromKeyFile(String publicKey) throws IOException {
+        Path path = Paths.get(publicKey);
+        if (Files.isDirectory(path)) {
+            return new Verifier(Keyring.load(path));
+        }
+        return new Verifier(SignRSA.getPublicKey(publicKey));
+    }
+
+    /**
+     * Проверяет массив, в конце которого записана подпись
+     * @param signed - данные с подписью
+     * @return Результат проверки
+     */
+    public VerifyResult verify(byte[] signed) throws NoSuchAlgorithmException {
+        return verify(ByteBuffer.wrap(signed));
+    }
+
+    /**
+     * Проверяет оставшиеся байты буфера, в конце которых записана подпись. Позиция буфера не меняется.
+     * @param signed - данные с подписью
+     * @return Результат проверки
+     */
+    public VerifyResult verify(ByteBuffer signed) throws NoSuchAlgorithmException {
+        ByteBuffer data = signed.slice();
+        Sign sign;
+        try {
+            sign = SignRSA.parseSign(data, data.remaining());
+            open(sign);
+        }
+        catch (IncorrectSignException e) {
+            return VerifyResult.invalid(e.getMessage());
+        }
+        if (sign.version == 3) {
+            return VerifyResult.invalid(DETACHED_MESSAGE);
+        }
+
+        ByteBuffer content = data.duplicate().limit((int)sign.content);
+        byte[] actual;
+        if (sign.version == 2) {
+            actual = MerkleHash.getRoot(content, sign.chunkSize);
+        }
+        else {
+            Hasher hasher = DigestProvider.current().newHasher();
+            hasher.update(content);
+            actual = hasher.digest();
+        }
+        return compare(sign, actual);
+    }
+
+    /**
+     * Проверяет поток до конца за один проход: последние байты придерживаются в небольшом буфере,
+     * все, что раньше, сразу идет в хеш. Поток не закрывается.
+     * </p> Поддерживается только подпись версии 1: для версии 2 размер куска известен лишь в конце потока.
+     * @param in - поток данных с подписью
+     * @return Результат проверки
+     * @throws IOException
+     */
+    public VerifyResult verify(InputStream in) throws IOException, NoSuchAlgorithmException {
+        return verify(in, OutputStream.nullOutputStream());
+    }
+
+    /**
+     * Проверяет поток как {@link #verify(InputStream)} и передает содержимое без подписи в {@code out}
+     * по мере чтения, поэтому память не зависит от размера потока. Придерживается только хвост
+     * размером с наибольшую подпись: все, что раньше, заведомо содержимое.
+     * </p> Содержимое уходит в {@code out} до того, как известен результат: получатель должен
+     * считать его недостоверным, пока результат не окажется успешным. Если подпись не разобрана,
+     * придержанный хвост не передается. Потоки не закрываются, {@code out} сбрасывается.
+     * @param in - поток данных с подписью
+     * @param out - поток для содержимого
+     * @return Результат проверки
+     * @throws IOException
+     */
+    public VerifyResult verify(InputStream in, OutputStream out) throws IOException, NoSuchAlgorithmException {
+        Hasher hasher = DigestProvider.current().newHasher();
+        byte[] window = new byte[BUFFER_SIZE + SignRSA.MAX_SIZE_OF_SIGN];
+        int held = 0;                                                       // Придержанные последние байты
+        long total = 0;
+        int n;
+        while ((n = in.read(window, held, window.length - held)) >= 0) {
+            total += n;
+            held += n;
+            if (held > SignRSA.MAX_SIZE_OF_SIGN) {
+                int release = held - SignRSA.MAX_SIZE_OF_SIGN;
+                hasher.update(window, 0, release);
+                out.write(window, 0, release);
+                System.arraycopy(window, release, window, 0, SignRSA.MAX_SIZE_OF_SIGN);
+                held = SignRSA.MAX_SIZE_OF_SIGN;
+            }
+        }
+
+        Sign sign;
+        try {
+            sign = SignRSA.parseSign(ByteBuffer.wrap(window, 0, held), total);
+        }
+        catch (IncorrectSignException e) {
+            out.flush();
+            return VerifyResult.invalid(e.getMessage());
+        }
+        if (sign.version != 1) {                                            // Размер содержимого версий 2 и 3 не связан с потоком
+            out.flush();
+            return VerifyResult.invalid("Stream verification supports only v1 sign");
+        }
+        if (total - sign.content > held) {
+            out.flush();
+            return VerifyResult.invalid("Sign size does not match the stream");
+        }
+        int tail = (int)(held - (total - sign.content));                    // Хвост содержимого перед подписью
+        hasher.update(window, 0, tail);
+        out.write(window, 0, tail);
+        out.flush();
+
+        try {
+            open(sign);
+        }
+        catch (IncorrectSignException e) {
+            return VerifyResult.invalid(e.getMessage());
+        }
+        return compare(sign, hasher.digest());
+    }
+
+    /**
+     * Проверяет весь открытый канал, в конце которого записана подпись
+     * @param channel - канал файла
+     * @return Результат проверки
+     * @throws IOException
+     */
+    public VerifyResult verify(FileChannel channel) throws IOException, NoSuchAlgorithmException {
+        Sign sign;
+        try {
+            sign = SignRSA.readSign(channel, channel.size());               // Сначала подпись, потом содержимое
+            open(sign);
+        }
+        catch (IncorrectSignException e) {
+            return VerifyResult.invalid(e.getMessage());
+        }
+        if (sign.version == 3) {
+            return VerifyResult.invalid(DETACHED_MESSAGE);
+        }
+
+        byte[] actual;
+        if (sign.version == 2) {
+            actual = MerkleHash.getRoot(channel, sign.content, sign.chunkSize);
+        }
+        else {
+            Hasher hasher = DigestProvider.current().newHasher();
+            ReadMode.current().hash(channel, 0, sign.content, hasher);
+            actual = hasher.digest();
+        }
+        return compare(sign, actual);
+    }
+
+    /**
+     * Проверяет содержимое канала по отдельной подписи (версия 3)
+     * @param content - канал файла с содержимым
+     * @param sidecar - весь отдельный файл подписи
+     * @return Результат проверки
+     * @throws IOException
+     */
+    public VerifyResult verifyDetached(FileChannel content, ByteBuffer sidecar) throws IOException, NoSuchAlgorithmException {
+        Sign sign;
+        try {
+            sign = SignRSA.parseSign(sidecar, sidecar.remaining());
+            open(sign);
+        }
+        catch (IncorrectSignException e) {
+            return VerifyResult.invalid(e.getMessage());
+        }
+        if (sign.version != 3) {
+            return VerifyResult.invalid("Sign is not detached");
+        }
+        if (content.size() != sign.content) {                               // Размер не совпал - хешировать незачем
+            return VerifyResult.invalid("File size mismatch detected");
+        }
+
+        Hasher hasher = DigestProvider.current().newHasher();
+        ReadMode.current().hash(content, 0, sign.content, hasher);
+        byte[] actual = SignRSA.detachedDigest(hasher.digest(), sign.content, sign.timestamp);
+        if (!new BigInteger(1, actual).equals(sign.expected)) {
+            return VerifyResult.invalid("Hash sum is not equals");
+        }
+        return VerifyResult.valid(sign);
+    }
+
+    /**
+     * Проверяет файл по отдельной подписи {@code <файл>.sig}. Оба файла только читаются.
+     * @param path - путь до файла с содержимым
+     * @return Результат проверки
+     * @throws IOException
+     */
+    public VerifyResult verifyFileDetached(Path path) throws IOException, NoSuchAlgorithmException {
+        Path sidecar = path.resolveSibling(path.getFileName() + ".sig");
+        if (!SignRSA.isDetachedSize(Files.size(sidecar))) {
+            return VerifyResult.invalid("Detached sign file has unexpected size");
+        }
+        ByteBuffer sign = ByteBuffer.wrap(Files.readAllBytes(sidecar));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return verifyDetached(channel, sign);
+        }
+    }
+
+    /**
+     * Проверяет подписанный файл, открывая его только на чтение.
+     * Если передан отдельный файл подписи {@code <файл>.sig}, проверяется файл рядом с ним.
+     * @param path - путь до файла
+     * @return Результат проверки
+     * @throws IOException
+     */
+    public VerifyResult verifyFile(Path path) throws IOException, NoSuchAlgorithmException {
+        ByteBuffer sidecar;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            sidecar = SignRSA.readDetachedSign(channel);
+            if (sidecar == null) {
+                return verify(channel);
+            }
+        }
+
+        String name = path.getFileName().toString();
+        if (!name.endsWith(".sig")) {
+            return VerifyResult.invalid(DETACHED_MESSAGE);
+        }
+        try (FileChannel channel = FileChannel.open(path.resolveSibling(name.substring(0, name.length() - 4)), StandardOpenOption.READ)) {
+            return verifyDetached(channel, sidecar);
+        }
+    }
+
+    /**
+     * Проверяет подписанный файл и при успехе восстанавливает исходный файл без подписи
+     * через временный файл и атомарный перенос (см. {@link SignRSA#stripSign}).
+     * Проверяется и копируется один и тот же открытый канал.
+     * @param path - путь до подписанного файла
+     * @return Результат проверки
+     * @throws IOException
+     */
+    public VerifyResult restoreFile(Path path) throws IOException, NoSuchAlgorithmException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            VerifyResult result = verify(channel);
+            if (result.isValid()) {
+                SignRSA.stripSign(channel, path, result.getContentSize());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Выбирает ключ по отпечатку в подписи и расшифровывает ею хеш-сумму.
+     * Подпись чужим ключом отсекается без операции RSA.
+     * @param sign - разобранная подпись
+     * @throws IncorrectSignException - если подходящего ключа нет или подпись не расшифрована
+     */
+    private void open(Sign sign) throws IncorrectSignException {
+        PublicKey now = key;
+        if (keyring != null) {
+            try {
+                now = sign.fingerprint != null ? keyring.get(sign.fingerprint) : keyring.single();
+            }
+            catch (IOException e) {
+                throw new IncorrectSignException("Failed to load key: " + e.getMessage());
+            }
+            if (now == null) {
+                throw new IncorrectSignException(sign.fingerprint != null
+                        ? "Unknown key " + SHA256.bytesToHex(sign.fingerprint)
+                        : "Sign has no key fingerprint");
+            }
+        }
+        else if (sign.fingerprint != null && !Arrays.equals(sign.fingerprint, fingerprint)) {
+            throw new IncorrectSignException("Sign was made by another key");
+        }
+        SignRSA.openSign(sign, now);
+        if (sign.fingerprint == null) {
+            sign.fingerprint = now.fingerprint();                           // Подпись без отпечатка: запоминаем, каким ключом проверена
+        }
+    }
+
+    /**
+     * Принимает ли этот объект подписи ключа с отпечатком {@code fingerprint}
+     * @param fingerprint - отпечаток ключа
+     * @return {@code true}, если это его ключ или ключ есть в наборе
+     */
+    boolean accepts(byte[] fingerprint) {
+        return keyring != null ? keyring.contains(fingerprint) : Arrays.equals(fingerprint, this.fingerprint);
+    }
+
+    private static VerifyResult compare(Sign sign, byte[] actual) {
+        if (!new BigInteger(1, actual).equals(sign.expected)) {
+            return VerifyResult.invalid("Hash sum is not equals");
+        }
+        return VerifyResult.valid(sign);
+    }
+}
@@ -0,0 +1,291 @@
+package com.mirea;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Постоянный кэш результатов проверки.
+ * </p> Запись хранит путь, размер, время изменения и идентификатор файла в ФС (inode), отпечаток ключа
+ * и проверенную хеш-сумму. Если у файла все это не изменилось, а ключ подходит проверяющему объекту,
+ * файл принимается без чтения содержимого. Для отдельной подписи (версия 3) так же запоминается
+ * файл с содержимым рядом с ней.
+ * </p> Размер кэша ограничен, при переполнении вытесняются давно не использованные записи.
+ * Файл кэша пишется целиком во временный файл и атомарно переносится на место, в конце файла лежит
+ * {@code SHA-256} всех записей: оборванный или испорченный файл при загрузке просто отбрасывается.
+ * </p> В режиме {@code paranoid} кэш не используется для проверки, но результаты в него записываются.
+ */
+public final class VerifyCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 65536;                    // Записей в кэше по умолчанию
+
+    private static final byte[] MAGIC = "ozzvc1".getBytes();
+
+    private final Path file;
+    private final boolean paranoid;
+    private final Map<String, Entry> entries;                               // Путь -> запись, в порядке обращения
+    private boolean dirty;
+
+    /**
+     * Состояние файла, при котором он был проверен
+     */
+    private static final class Identity {
+        final long size;
+        final long modified;                // Время изменения в наносекундах
+        final String inode;                 // Идентификатор файла в ФС или пустая строка
+
+        Identity(long size, long modified, String inode) {
+            this.size = size;
+            this.modified = modified;
+            this.inode = inode;
+        }
+
+        static Identity of(Path path) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new Identity(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                    Objects.toString(attributes.fileKey(), ""));
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Identity)) {
+                return false;
+            }
+            Identity that = (Identity)other;
+            return size == that.size && modified == that.modified && inode.equals(that.inode);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, modified, inode);
+        }
+    }
+
+    /**
+     * Запись кэша
+     */
+    private static final class Entry {
+        final Identity identity;
+        final Identity content;             // Файл с содержимым для версии 3, иначе null
+        final int version;
+        final long contentSize;
+        final long timestamp;
+        final byte[] fingerprint;
+        final byte[] digest;
+
+        Entry(Identity identity, Identity content, VerifyResult result) {
+            this(identity, content, result.getVersion(), result.getContentSize(), result.getTimestamp(),
+                    result.getFingerprint(), result.getDigest());
+        }
+
+        Entry(Identity identity, Identity content, int version, long contentSize, long timestamp, byte[] fingerprint, byte[] digest) {
+            this.identity = identity;
+            this.content = content;
+            this.version = version;
+            this.contentSize = contentSize;
+            this.timestamp = timestamp;
+            this.fingerprint = fingerprint;
+            this.digest = digest;
+        }
+    }
+
+    private VerifyCache(Path file, int maxEntries, boolean paranoid) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache size should be positive");
+        }
+        this.file = file;
+        this.paranoid = paranoid;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Открывает кэш из файла. Отсутствующий, оборванный или испорченный файл дает пустой кэш.
+     * @param file - файл кэша
+     * @param maxEntries - максимальное число записей
+     * @param paranoid - не принимать файлы по кэшу, только обновлять его
+     * @return Кэш
+     * @throws IOException - если файл есть, но не читается
+     */
+    public static VerifyCache open(Path file, int maxEntries, boolean paranoid) throws IOException {
+        VerifyCache cache = new VerifyCache(file, maxEntries, paranoid);
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        }
+        catch (NoSuchFileException e) {
+            return cache;
+        }
+        if (data.length < MAGIC.length + SHA256.DIGEST_SIZE
+                || !Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length)
+                || !Arrays.equals(SHA256.getHash(Arrays.copyOf(data, data.length - SHA256.DIGEST_SIZE)),
+                                  Arrays.copyOfRange(data, data.length - SHA256.DIGEST_SIZE, data.length))) {
+            return cache;                                                   // Оборванная запись - начинаем заново
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, MAGIC.length, data.length - MAGIC.length - SHA256.DIGEST_SIZE))) {
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {                                // Записи идут от старых к новым
+                String path = in.readUTF();
+                Identity identity = readIdentity(in);
+                Identity content = in.readBoolean() ? readIdentity(in) : null;
+                int version = in.readInt();
+                long contentSize = in.readLong();
+                long timestamp = in.readLong();
+                byte[] fingerprint = new byte[SHA256.DIGEST_SIZE];
+                in.readFully(fingerprint);
+                byte[] digest = new byte[SHA256.DIGEST_SIZE];
+                in.readFully(digest);
+                cache.entries.put(path, new Entry(identity, content, version, contentSize, timestamp, fingerprint, digest));
+            }
+        }
+        catch (IOException e) {
+            cache.entries.clear();                                          // Формат не совпал - начинаем заново
+        }
+        return cache;
+    }
+
+    private static Identity readIdentity(DataInputStream in) throws IOException {
+        return new Identity(in.readLong(), in.readLong(), in.readUTF());
+    }
+
+    private static void writeIdentity(DataOutputStream out, Identity identity) throws IOException {
+        out.writeLong(identity.size);
+        out.writeLong(identity.modified);
+        out.writeUTF(identity.inode);
+    }
+
+    /**
+     * Проверяет файл как {@link Verifier#verifyFile}, но сначала ищет его в кэше.
+     * Успешный результат запоминается, если файл не менялся во время проверки,
+     * а для отдельной подписи - и файл с содержимым.
+     * @param verifier - проверяющий объект
+     * @param path - путь до подписанного файла
+     * @return Результат проверки
+     * @throws IOException
+     */
+    public VerifyResult verifyFile(Verifier verifier, Path path) throws IOException, NoSuchAlgorithmException {
+        String key = path.toAbsolutePath().normalize().toString();
+        Identity before = Identity.of(path);
+
+        if (!paranoid) {
+            Entry entry;
+            synchronized (this) {
+                entry = entries.get(key);
+            }
+            if (entry != null && entry.identity.equals(before) && verifier.accepts(entry.fingerprint)
+                    && (entry.content == null || entry.content.equals(contentIdentity(path)))) {
+                Metrics.increment(Metrics.Counter.CACHE_HITS);
+                return VerifyResult.valid(entry.version, entry.contentSize, entry.timestamp, entry.fingerprint, entry.digest);
+            }
+        }
+
+        Identity payload = contentIdentity(path);                           // До хеширования: для версии 3 меняется содержимое, а не подпись
+        VerifyResult result = verifier.verifyFile(path);
+        Identity content = result.isValid() && result.getVersion() == 3 ? payload : null;
+        boolean unchanged = result.isValid() && before.equals(Identity.of(path))    // Файл не менялся во время проверки
+                && (result.getVersion() != 3 || (content != null && content.equals(contentIdentity(path))));
+        synchronized (this) {
+            if (unchanged) {
+                entries.put(key, new Entry(before, content, result));
+                dirty = true;
+            }
+            else if (entries.remove(key) != null) {
+                dirty = true;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Состояние файла с содержимым рядом с отдельной подписью {@code <файл>.sig}
+     */
+    private static Identity contentIdentity(Path sidecar) throws IOException {
+        String name = sidecar.getFileName().toString();
+        if (!name.endsWith(".sig")) {
+            return null;
+        }
+        try {
+            return Identity.of(sidecar.resolveSibling(name.substring(0, name.length() - 4)));
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Количество записей
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Записывает кэш на диск, если он изменился: во временный файл рядом, затем атомарный перенос
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeInt(entries.size());
+            for(Map.Entry<String, Entry> now : entries.entrySet()) {        // От давно использованных к недавним
+                Entry entry = now.getValue();
+                out.writeUTF(now.getKey());
+                writeIdentity(out, entry.identity);
+                out.writeBoolean(entry.content != null);
+                if (entry.content != null) {
+                    writeIdentity(out, entry.content);
+                }
+                out.writeInt(entry.version);
+                out.writeLong(entry.contentSize);
+                out.writeLong(entry.timestamp);
+                out.write(entry.fingerprint);
+                out.write(entry.digest);
+            }
+        }
+        byte[] data = bytes.toByteArray();
+        byte[] checksum = SHA256.getHash(data);
+
+        Path absolute = file.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer[] buffers = { ByteBuffer.wrap(data), ByteBuffer.wrap(checksum) };
+                while (buffers[1].hasRemaining()) {
+                    out.write(buffers);
+                }
+                out.force(true);                                            // Данные на диске до переноса
+            }
+            Files.move(temp, absolute, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        dirty = false;
+    }
+}
@@ -0,0 +1,161 @@
+package com.mirea;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Отчет массовой проверки: статус и время по каждому файлу, выводится в JSON или CSV
+ */
+public final class VerifyReport {
+
+    /**
+     * Статус одного файла
+     */
+    public enum Status { VALID, INVALID, ERROR }
+
+    /**
+     * Запись об одном файле
+     */
+    public static final class Entry {
+        final String path;
+        final Status status;
+        final int version;
+        final String message;
+        final long nanos;
+
+        Entry(String path, Status status, int version, String message, long nanos) {
+            this.path = path;
+            this.status = status;
+            this.version = version;
+            this.message = message;
+            this.nanos = nanos;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private int skipped;
+    private long nanos;
+
+    synchronized void add(Path path, VerifyResult result, long nanos) {
+        entries.add(new Entry(path.toString(), result.isValid() ? Status.VALID : Status.INVALID,
+                result.getVersion(), result.getMessage(), nanos));
+    }
+
+    synchronized void addError(Path path, Exception e, long nanos) {
+        entries.add(new Entry(path.toString(), Status.ERROR, 0, String.valueOf(e), nanos));
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    void setSkipped(int skipped) {
+        this.skipped = skipped;
+    }
+
+    void setNanos(long nanos) {
+        this.nanos = nanos;
+    }
+
+    /**
+     * Записи, отсортированные по пути
+     */
+    public synchronized List<Entry> getEntries() {
+        List<Entry> result = new ArrayList<>(entries);
+        result.sort(Comparator.comparing(Entry::getPath));
+        return result;
+    }
+
+    /**
+     * Количество файлов с неверной подписью или ошибкой чтения
+     */
+    public synchronized int getFailed() {
+        return (int)entries.stream().filter(now -> now.status != Status.VALID).count();
+    }
+
+    /**
+     * Сколько файлов не проверялось после остановки на первой ошибке
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Краткий итог для пользователя
+     */
+    public String summary() {
+        return String.format(Locale.ROOT, "Verified: %d, failed: %d, skipped: %d in %.2f s",
+                size() - getFailed(), getFailed(), skipped, nanos / 1e9);
+    }
+
+    public String toJson() {
+        StringBuilder result = new StringBuilder();
+        result.append("{\"failed\":").append(getFailed())
+              .append(",\"skipped\":").append(skipped)
+              .append(",\"elapsedMs\":").append(String.format(Locale.ROOT, "%.3f", nanos / 1e6))
+              .append(",\"files\":[");
+        List<Entry> list = getEntries();
+        for(int i = 0; i < list.size(); i++) {
+            Entry now = list.get(i);
+            result.append(i > 0 ? "," : "")
+                  .append("{\"path\":").append(jsonString(now.path))
+                  .append(",\"status\":\"").append(now.status).append('"')
+                  .append(",\"version\":").append(now.version)
+                  .append(",\"message\":").append(jsonString(now.message))
+                  .append(",\"ms\":").append(String.format(Locale.ROOT, "%.3f", now.nanos / 1e6))
+                  .append('}');
+        }
+        return result.append("]}").append(System.lineSeparator()).toString();
+    }
+
+    public String toCsv() {
+        StringBuilder result = new StringBuilder("path,status,version,ms,message").append(System.lineSeparator());
+        for(Entry now : getEntries()) {
+            result.append(csvString(now.path)).append(',')
+                  .append(now.status).append(',')
+                  .append(now.version).append(',')
+                  .append(String.format(Locale.ROOT, "%.3f", now.nanos / 1e6)).append(',')
+                  .append(csvString(now.message)).append(System.lineSeparator());
+        }
+        return result.toString();
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder result = new StringBuilder("\"");
+        for(char c : value.toCharArray()) {
+            switch (c) {
+                case '"': result.append("\\\""); break;
+                case '\\': result.append("\\\\"); break;
+                case '\n': result.append("\\n"); break;
+                case '\r': result.append("\\r"); break;
+                case '\t': result.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        result.append(String.format(Locale.ROOT, "\\u%04x", (int)c));
+                    }
+                    else {
+                        result.append(c);
+                    }
+            }
+        }
+        return result.append('"').toString();
+    }
+
+    private static String csvString(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,103 @@
+package com.mirea;
+
+/**
+ * Результат проверки подписи из {@link Verifier}
+ */
+public final class VerifyResult {
+
+    private static final String OK_MESSAGE = "Sign and File has not been modified.";
+
+    private final boolean valid;
+    private final int version;
+    private final long contentSize;
+    private final long timestamp;
+    private final byte[] fingerprint;       // Отпечаток ключа, которым проверена подпись
+    private final byte[] digest;            // Подписанная хеш-сумма или корень дерева
+    private final String message;
+
+    private VerifyResult(boolean valid, int version, long contentSize, long timestamp, byte[] fingerprint, byte[] digest, String message) {
+        this.valid = valid;
+        this.version = version;
+        this.contentSize = contentSize;
+        this.timestamp = timestamp;
+        this.fingerprint = fingerprint;
+        this.digest = digest;
+        this.message = message;
+    }
+
+    static VerifyResult valid(SignRSA.Sign sign) {
+        Metrics.increment(Metrics.Counter.VERIFIED);
+        return valid(sign.version, sign.content, sign.version == 3 ? sign.timestamp : SignRSA.NO_TIMESTAMP, sign.fingerprint,
+                SignRSA.toFixedLength(sign.expected.toByteArray(), SHA256.DIGEST_SIZE));
+    }
+
+    static VerifyResult valid(int version, long contentSize, long timestamp, byte[] fingerprint, byte[] digest) {
+        return new VerifyResult(true, version, contentSize, timestamp, fingerprint, digest, OK_MESSAGE);
+    }
+
+    static VerifyResult invalid(String message) {
+        Metrics.increment(Metrics.Counter.REJECTED);
+        return new VerifyResult(false, 0, -1, SignRSA.NO_TIMESTAMP, null, null, message);
+    }
+
+    /**
+     * Подпись верна и содержимое не изменено
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Версия подписи (1, 2 или 3 - отдельный файл), 0 - если подпись не разобрана
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Размер содержимого без подписи, -1 - если подпись неверна
+     */
+    public long getContentSize() {
+        return contentSize;
+    }
+
+    /**
+     * Записано ли в подписи время изменения содержимого
+     */
+    public boolean hasTimestamp() {
+        return timestamp != SignRSA.NO_TIMESTAMP;
+    }
+
+    /**
+     * Время изменения содержимого на момент подписи в миллисекундах
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Отпечаток ключа, которым проверена подпись, {@code null} - если подпись неверна
+     */
+    byte[] getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Подписанная хеш-сумма (или корень дерева), {@code null} - если подпись неверна
+     */
+    byte[] getDigest() {
+        return digest;
+    }
+
+    /**
+     * Сообщение для пользователя: подтверждение или причина отказа
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return message;
+    }
+}
@@ -0,0 +1,138 @@
+package com.mirea;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Сверка {@link ModExpEngine} с {@code BigInteger.modPow}. Движок создается напрямую,
+ * поэтому проверяется независимо от {@code -Dsign.modexp} и архитектуры.
+ */
+public class ModExpEngineTest {
+
+    private static final long SEED = 0x4D6F6445787030L;
+
+    /**
+     * Нечетные модули вокруг границ 64-битных слов и размеров ключей
+     */
+    private static List<BigInteger> moduli(Random random) {
+        List<BigInteger> result = new ArrayList<>();
+        int[] bits = { 2, 3, 62, 63, 64, 65, 127, 128, 129, 191, 192, 193, 511, 512, 513, 1024, 2048 };
+        for(int length : bits) {
+            result.add(BigInteger.ONE.shiftLeft(length).subtract(BigInteger.ONE));     // Все единицы
+            result.add(BigInteger.ONE.shiftLeft(length - 1).add(BigInteger.ONE));      // Старший и младший бит
+            result.add(new BigInteger(length, random).setBit(length - 1).setBit(0));
+        }
+        return result;
+    }
+
+    private static BigInteger[] exponents(Random random, BigInteger modulus) {
+        return new BigInteger[] {
+            BigInteger.ZERO,
+            BigInteger.ONE,
+            BigInteger.TWO,
+            BigInteger.valueOf(65537),
+            new BigInteger(33, random),
+            new BigInteger(Math.max(2, modulus.bitLength()), random)
+        };
+    }
+
+    private static BigInteger[] bases(Random random, BigInteger modulus) {
+        return new BigInteger[] {
+            BigInteger.ZERO,
+            BigInteger.ONE,
+            modulus.subtract(BigInteger.ONE),
+            modulus,                                                         // Основание не меньше модуля
+            modulus.add(BigInteger.TWO),
+            modulus.shiftLeft(70).add(BigInteger.valueOf(12345)),
+            new BigInteger(modulus.bitLength(), random).mod(modulus),
+            new BigInteger(modulus.bitLength() + 64, random),
+            BigInteger.valueOf(-7)
+        };
+    }
+
+    @Test
+    public void matchesBigInteger() {
+        Random random = new Random(SEED);
+        for(BigInteger modulus : moduli(random)) {
+            for(BigInteger exponent : exponents(random, modulus)) {
+                ModExpEngine engine = new ModExpEngine(modulus, exponent);
+                for(BigInteger base : bases(random, modulus)) {
+                    assertEquals(base + "^" + exponent + " mod " + modulus,
+                                 base.modPow(exponent, modulus), engine.modPow(base));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void randomized() {
+        Random random = new Random(SEED);
+        for(int i = 0; i < 300; i++) {
+            int bits = 2 + random.nextInt(1100);
+            BigInteger modulus = new BigInteger(bits, random).setBit(bits - 1).setBit(0);
+            BigInteger exponent = new BigInteger(1 + random.nextInt(bits + 64), random);
+            BigInteger base = new BigInteger(bits + random.nextInt(3) - 1, random);
+            assertEquals(base + "^" + exponent + " mod " + modulus,
+                         base.modPow(exponent, modulus), new ModExpEngine(modulus, exponent).modPow(base));
+        }
+    }
+
+    @Test
+    public void bytesHaveFixedLength() {
+        Random random = new Random(SEED);
+        BigInteger modulus = new BigInteger(1023, random).setBit(1022).setBit(0);
+        BigInteger exponent = new BigInteger(1023, random);
+        ModExpEngine engine = new ModExpEngine(modulus, exponent);
+        assertEquals(128, engine.getByteLength());
+
+        for(int i = 0; i < 50; i++) {
+            BigInteger base = new BigInteger(1 + random.nextInt(1100), random);
+            byte[] raw = base.toByteArray();
+            byte[] source = new byte[raw.length + 5];                       // Смещение и ведущие нули
+            System.arraycopy(raw, 0, source, 5, raw.length);
+
+            byte[] actual = engine.modPow(source, 3, raw.length + 2);
+            assertEquals(engine.getByteLength(), actual.length);
+            assertEquals(base.modPow(exponent, modulus), new BigInteger(1, actual));
+        }
+        assertArrayEquals(new byte[engine.getByteLength()], engine.modPow(new byte[0], 0, 0));
+    }
+
+    @Test
+    public void sharedBetweenThreads() throws InterruptedException {
+        Random random = new Random(SEED);
+        BigInteger modulus = new BigInteger(512, random).setBit(511).setBit(0);
+        BigInteger exponent = new BigInteger(512, random);
+        ModExpEngine engine = new ModExpEngine(modulus, exponent);
+        BigInteger[] bases = new BigInteger[64];
+        for(int i = 0; i < bases.length; i++) {
+            bases[i] = new BigInteger(512, random);
+        }
+
+        List<AssertionError> failures = new ArrayList<>();
+        Thread[] threads = new Thread[4];
+        for(int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for(BigInteger base : bases) {
+                    if (!base.modPow(exponent, modulus).equals(engine.modPow(base))) {
+                        synchronized (failures) {
+                            failures.add(new AssertionError("Mismatch for " + base));
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(List.of(), failures);
+    }
+}
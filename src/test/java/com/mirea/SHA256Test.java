@@ -0,0 +1,150 @@
+package com.mirea;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Сверка встроенного {@link SHA256} с {@code MessageDigest} на границах блока и при любом разбиении данных
+ */
+public class SHA256Test {
+
+    private static final long SEED = 0x5EED5A256L;
+
+    private static byte[] expected(byte[] content) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-256").digest(content);
+    }
+
+    private static byte[] random(Random random, int length) {
+        byte[] result = new byte[length];
+        random.nextBytes(result);
+        return result;
+    }
+
+    @Test
+    public void emptyInput() throws NoSuchAlgorithmException {
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+                     SHA256.bytesToHex(SHA256.getHash(new byte[0])));
+        assertArrayEquals(expected(new byte[0]), new SHA256().digest());
+    }
+
+    @Test
+    public void knownVector() {
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                     SHA256.bytesToHex(SHA256.getHash("abc".getBytes())));
+    }
+
+    @Test
+    public void paddingBoundaries() throws NoSuchAlgorithmException {
+        Random random = new Random(SEED);
+        int[] lengths = { 1, 55, 56, 57, 63, 64, 65, 119, 120, 127, 128, 129 };
+        for(int length : lengths) {
+            byte[] content = random(random, length);
+            assertArrayEquals("length " + length, expected(content), SHA256.getHash(content));
+        }
+    }
+
+    @Test
+    public void multiBlockInput() throws NoSuchAlgorithmException {
+        Random random = new Random(SEED);
+        for(int length = 0; length <= 4 * SHA256.BLOCK_SIZE + 1; length++) {
+            byte[] content = random(random, length);
+            assertArrayEquals("length " + length, expected(content), SHA256.getHash(content));
+        }
+        byte[] large = random(random, 1 << 20);
+        assertArrayEquals(expected(large), SHA256.getHash(large));
+    }
+
+    @Test
+    public void incrementalSplits() throws NoSuchAlgorithmException {
+        Random random = new Random(SEED);
+        byte[] content = random(random, 1000);
+        byte[] whole = expected(content);
+        SHA256 sha = new SHA256();
+        for(int split = 0; split <= content.length; split += 7) {          // Два куска с любой границей
+            sha.update(content, 0, split);
+            sha.update(content, split, content.length - split);
+            assertArrayEquals("split " + split, whole, sha.digest());
+        }
+        for(int i = 0; i < 50; i++) {                                       // Случайные куски, в том числе пустые
+            int offset = 0;
+            while (offset < content.length) {
+                int n = Math.min(random.nextInt(2 * SHA256.BLOCK_SIZE), content.length - offset);
+                sha.update(content, offset, n);
+                offset += n;
+            }
+            assertArrayEquals(whole, sha.digest());
+        }
+    }
+
+    @Test
+    public void byteBufferUpdate() throws NoSuchAlgorithmException {
+        Random random = new Random(SEED);
+        byte[] content = random(random, 777);
+        ByteBuffer direct = ByteBuffer.allocateDirect(content.length);
+        direct.put(content).flip();
+
+        SHA256 sha = new SHA256();
+        sha.update(content, 0, 3);                                          // Неполный блок перед direct-буфером
+        direct.position(3);
+        sha.update(direct);
+        assertEquals(direct.limit(), direct.position());
+        assertArrayEquals(expected(content), sha.digest());
+
+        sha.update(ByteBuffer.wrap(content, 100, 500).slice());
+        byte[] part = new byte[500];
+        System.arraycopy(content, 100, part, 0, part.length);
+        assertArrayEquals(expected(part), sha.digest());
+    }
+
+    @Test
+    public void exportedStateContinues() throws NoSuchAlgorithmException {
+        Random random = new Random(SEED);
+        byte[] content = random(random, 5 * SHA256.BLOCK_SIZE + 11);
+        SHA256 first = new SHA256();
+        first.update(content, 0, 3 * SHA256.BLOCK_SIZE);
+
+        SHA256 second = new SHA256();
+        second.importState(first.exportState());
+        assertEquals(3 * SHA256.BLOCK_SIZE, second.getCount());
+        second.update(content, 3 * SHA256.BLOCK_SIZE, content.length - 3 * SHA256.BLOCK_SIZE);
+        assertArrayEquals(expected(content), second.digest());
+    }
+
+    @Test
+    public void batchMatchesSingle() throws NoSuchAlgorithmException {
+        Random random = new Random(SEED);
+        byte[][] contents = new byte[13][];
+        for(int i = 0; i < contents.length; i++) {
+            contents[i] = random(random, random.nextInt(3 * SHA256.BLOCK_SIZE));
+        }
+        byte[][] hashes = SHA256.getHashes(contents);
+        for(int i = 0; i < contents.length; i++) {
+            assertArrayEquals("message " + i, expected(contents[i]), hashes[i]);
+        }
+    }
+
+    @Test
+    public void vectorLanesMatchDigest() throws NoSuchAlgorithmException {
+        assumeTrue("Vector API is not available", SHA256.VECTOR_LANES > 0);
+        Random random = new Random(SEED);
+        int[] lengths = { 0, 1, 55, 56, 57, 63, 64, 65, 119, 120, 128, 1000, 4096 + 13 };
+        for(int count = 1; count <= 2 * SHA256.VECTOR_LANES + 1; count++) {       // Неполные и несколько групп дорожек
+            byte[][] contents = new byte[count][];
+            for(int i = 0; i < count; i++) {
+                contents[i] = random(random, lengths[(i + count) % lengths.length]);
+            }
+            byte[][] hashes = VectorSHA256.getHashes(contents);
+            for(int i = 0; i < count; i++) {
+                assertArrayEquals("message " + i + " of " + count, expected(contents[i]), hashes[i]);
+            }
+        }
+    }
+}
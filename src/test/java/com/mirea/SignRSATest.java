@@ -0,0 +1,41 @@
+package com.mirea;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+import com.mirea.SignRSA.KeyPair;
+import com.mirea.SignRSA.KeyPair.PrivateKey;
+
+/**
+ * Подпись через CRT и ее проверка открытой экспонентой
+ */
+public class SignRSATest {
+
+    private static final byte[] DIGEST = SHA256.getHash("content".getBytes());
+
+    @Test
+    public void crtSignOpensWithPublicKey() {
+        KeyPair pair = SignRSA.newKeyPair(false);
+        byte[] sign = SignRSA.encrypt(pair.PrivateK, DIGEST);
+        assertEquals(new BigInteger(1, DIGEST), SignRSA.decrypt(pair.PublicK, sign));
+        assertEquals(pair.PublicK.e, pair.PrivateK.publicExponent());
+    }
+
+    @Test
+    public void faultyHalfFallsBackToFullExponent() {
+        KeyPair pair = SignRSA.newKeyPair(false);
+        PrivateKey key = pair.PrivateK;
+        PrivateKey faulty = new PrivateKey(key.d, key.N);                   // Испорченная половина по модулю p
+        faulty.p = key.p;
+        faulty.q = key.q;
+        faulty.dP = key.dP.add(BigInteger.ONE);
+        faulty.dQ = key.dQ;
+        faulty.qInv = key.qInv;
+
+        byte[] sign = SignRSA.encrypt(faulty, DIGEST);
+        assertEquals(new BigInteger(1, DIGEST), SignRSA.decrypt(pair.PublicK, sign));
+    }
+}